@@ -0,0 +1,153 @@
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides, as each connection is accepted, whether it is let in. A connection turned
+ * away here costs the server one small write instead of a handler, a TLS handshake and
+ * a password hash, so a storm of clients reconnecting after a restart is spread out by
+ * their backoff instead of piling up on the server.
+ *
+ * Limits, all from {@link ServerConfig}: a ceiling on open connections, a token bucket
+ * on new connections server-wide, and per source address both a token bucket and a cap
+ * on open connections. Loopback addresses are spared the per-address limits unless
+ * chat.accept.limitLoopback is set, as local tools such as {@link LoadGenerator} open
+ * many connections from one address.
+ *
+ * Only the accept thread admits; releases come from whichever thread closes the connection.
+ */
+public class AdmissionControl {
+    // An address with no open connections is forgotten once it has been quiet this long
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /** Admitted connections release their permit when they close; refused ones hold none. */
+    public final class Permit {
+        private final String rejection;
+        private final Source source;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(String rejection, Source source) {
+            this.rejection = rejection;
+            this.source = source;
+        }
+
+        public boolean isAdmitted() {
+            return rejection == null;
+        }
+
+        /** Why the connection was turned away, for the client; null if it was admitted. */
+        public String getRejection() {
+            return rejection;
+        }
+
+        /** Gives the connection's place back; safe to call more than once. */
+        public void release() {
+            if (rejection != null || !released.compareAndSet(false, true)) return;
+            open.decrementAndGet();
+            if (source != null) source.open.decrementAndGet();
+        }
+    }
+
+    /** Per-address state; the bucket is used only by the accept thread. */
+    private static final class Source {
+        final TokenBucket bucket;
+        final AtomicInteger open = new AtomicInteger();
+        volatile long lastSeen;
+
+        Source(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    private final int maxConnections;
+    private final TokenBucket connectionRate;
+    private final int perAddressPerSecond;
+    private final int perAddressBurst;
+    private final int maxPerAddress;
+    private final boolean limitLoopback;
+    private final AtomicInteger open = new AtomicInteger();
+    private final ConcurrentHashMap<InetAddress, Source> sources = new ConcurrentHashMap<>();
+    private final LongAdder rejectedFull = new LongAdder();
+    private final LongAdder rejectedRate = new LongAdder();
+    private final LongAdder rejectedAddress = new LongAdder();
+
+    public AdmissionControl(ServerConfig config) {
+        this.maxConnections = config.getMaxConnections();
+        this.connectionRate = config.getConnectionsPerSecond() > 0
+                ? new TokenBucket(config.getConnectionsPerSecond(), config.getConnectionBurst()) : null;
+        this.perAddressPerSecond = config.getConnectionsPerAddressPerSecond();
+        this.perAddressBurst = config.getConnectionBurstPerAddress();
+        this.maxPerAddress = config.getMaxConnectionsPerAddress();
+        this.limitLoopback = config.isLimitLoopback();
+    }
+
+    /** Admits or refuses a connection from {@code address}; accept thread only. */
+    public Permit admit(InetAddress address) {
+        if (maxConnections > 0 && open.get() >= maxConnections) {
+            rejectedFull.increment();
+            return new Permit("The server is full, try again later.", null);
+        }
+        Source source = null;
+        if (perAddressLimited(address)) {
+            // Touched inside compute, so forgetIdle() cannot drop it between here and the count
+            source = sources.compute(address, (a, existing) -> {
+                Source current = existing != null ? existing : new Source(perAddressPerSecond > 0
+                        ? new TokenBucket(perAddressPerSecond, perAddressBurst) : null);
+                current.lastSeen = System.nanoTime();
+                return current;
+            });
+            if (maxPerAddress > 0 && source.open.get() >= maxPerAddress) {
+                rejectedAddress.increment();
+                return new Permit("Too many connections from your address.", null);
+            }
+            if (source.bucket != null && !source.bucket.tryAcquire(1)) {
+                rejectedAddress.increment();
+                return new Permit("Too many connections from your address, try again shortly.", null);
+            }
+        }
+        // Checked last, so a connection refused for its address leaves the shared bucket alone;
+        // one refused here hands its address token back so the address is not charged for it
+        if (connectionRate != null && !connectionRate.tryAcquire(1)) {
+            if (source != null && source.bucket != null) source.bucket.release(1);
+            rejectedRate.increment();
+            return new Permit("The server is busy, try again shortly.", null);
+        }
+        open.incrementAndGet();
+        if (source != null) source.open.incrementAndGet();
+        return new Permit(null, source);
+    }
+
+    private boolean perAddressLimited(InetAddress address) {
+        return (perAddressPerSecond > 0 || maxPerAddress > 0)
+                && address != null && (limitLoopback || !address.isLoopbackAddress());
+    }
+
+    /** Forgets addresses with nothing open that have been quiet for a while; run periodically. */
+    public void forgetIdle() {
+        long cutoff = System.nanoTime() - IDLE_NANOS;
+        for (InetAddress address : sources.keySet()) {
+            sources.computeIfPresent(address, (a, source) ->
+                    source.open.get() == 0 && source.lastSeen - cutoff < 0 ? null : source);
+        }
+    }
+
+    /** Connections admitted and not yet closed. */
+    public int getOpenConnections() {
+        return open.get();
+    }
+
+    public long getRejectedFull() {
+        return rejectedFull.sum();
+    }
+
+    public long getRejectedRate() {
+        return rejectedRate.sum();
+    }
+
+    public long getRejectedAddress() {
+        return rejectedAddress.sum();
+    }
+}
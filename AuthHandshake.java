@@ -0,0 +1,57 @@
+/**
+ * First frame exchanged on every connection. The client sends one of
+ * <pre>
+ *   LOGIN\n&lt;email&gt;\n&lt;password&gt;\n&lt;username&gt;
+ *   REGISTER\n&lt;email&gt;\n&lt;password&gt;\n&lt;username&gt;
+ *   RESUME\n&lt;session token&gt;\n&lt;username&gt;[\n&lt;last sequence number seen&gt;]
+ * </pre>
+ * and the server answers {@code AUTH_OK\n<session token>} or {@code AUTH_FAIL\n<reason>}.
+ * A RESUME carrying a sequence number also asks for the room messages sent after it.
+ *
+ * A server too busy to take the connection sends {@code AUTH_BUSY\n<reason>} as soon as
+ * it accepts, before the client has sent anything, and closes; the client should come
+ * back later rather than straight away.
+ */
+public final class AuthHandshake {
+    public static final String LOGIN = "LOGIN";
+    public static final String REGISTER = "REGISTER";
+    public static final String RESUME = "RESUME";
+    public static final String OK = "AUTH_OK";
+    public static final String FAIL = "AUTH_FAIL";
+    public static final String BUSY = "AUTH_BUSY";
+    private static final String SEPARATOR = "\n";
+
+    private AuthHandshake() {}
+
+    public static String login(String email, String password, String username) {
+        return String.join(SEPARATOR, LOGIN, email, password, username);
+    }
+
+    public static String register(String email, String password, String username) {
+        return String.join(SEPARATOR, REGISTER, email, password, username);
+    }
+
+    public static String resume(String token, String username) {
+        return String.join(SEPARATOR, RESUME, token, username);
+    }
+
+    public static String resume(String token, String username, long lastSequence) {
+        return String.join(SEPARATOR, RESUME, token, username, Long.toString(lastSequence));
+    }
+
+    public static String ok(String token) {
+        return OK + SEPARATOR + token;
+    }
+
+    public static String fail(String reason) {
+        return FAIL + SEPARATOR + reason;
+    }
+
+    public static String busy(String reason) {
+        return BUSY + SEPARATOR + reason;
+    }
+
+    public static String[] parse(String frame) {
+        return frame.split(SEPARATOR, -1);
+    }
+}
@@ -0,0 +1,59 @@
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Wall-clock timestamps as the server prints them, formatted at most once per second
+ * and shared by every thread. Within a second, asking for the time allocates nothing.
+ */
+public final class CachedClock {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
+
+    private static final class Second {
+        final long epochSecond;
+        final String time;
+        final String dateTime;
+        final byte[] logPrefix;
+
+        Second(long epochSecond) {
+            LocalDateTime now = LocalDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), ZoneId.systemDefault());
+            this.epochSecond = epochSecond;
+            this.time = TIME.format(now);
+            this.dateTime = DATE_TIME.format(now);
+            this.logPrefix = ("[" + dateTime + "] ").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static volatile Second current = new Second(System.currentTimeMillis() / 1000);
+
+    private CachedClock() {}
+
+    private static Second now() {
+        long epochSecond = System.currentTimeMillis() / 1000;
+        Second second = current;
+        if (second.epochSecond != epochSecond) {
+            // Racing threads may each format the new second; any of the results will do
+            second = new Second(epochSecond);
+            current = second;
+        }
+        return second;
+    }
+
+    /** HH:mm:ss, as shown in chat lines. */
+    public static String time() {
+        return now().time;
+    }
+
+    /** dd-MM-yyyy HH:mm:ss, as used by the server log. */
+    public static String dateTime() {
+        return now().dateTime;
+    }
+
+    /** "[dd-MM-yyyy HH:mm:ss] " in UTF-8, the prefix of every log file line. Do not modify. */
+    static byte[] logPrefix() {
+        return now().logPrefix;
+    }
+}
@@ -1,15 +1,10 @@
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
 import java.util.Scanner;
 
 public class ChatClient {
     private final String serverIP;
     private final int serverPort;
-    private Socket socket;
-    private DataInputStream input;
-    private DataOutputStream output;
+    private ChatConnection connection;
     private final Scanner scanner = new Scanner(System.in);
 
     public ChatClient(String serverIP, int serverPort) {
@@ -20,9 +15,7 @@ public class ChatClient {
     public void start() {
         try {
             initializeConnection();
-            if (!performLogin()) return; // new login system integration
-            String username = getUsername();
-            sendUsername(username);
+            if (!performLogin()) return; // authenticated by the server
             startMessageListener();
             handleUserInput();
         } catch (IOException e) {
@@ -34,7 +27,7 @@ public class ChatClient {
         }
     }
 
-    private boolean performLogin() {
+    private boolean performLogin() throws IOException {
         System.out.print("Do you have an account? (yes/no): ");
         String choice = scanner.nextLine().trim().toLowerCase();
 
@@ -42,18 +35,22 @@ public class ChatClient {
         String email = scanner.nextLine().trim();
         System.out.print("Enter password: ");
         String password = scanner.nextLine().trim();
+        String username = getUsername();
 
+        boolean success;
         if (choice.equals("no")) {
-            return LoginSystem.register(email, password);
+            success = connection.register(email, password, username);
         } else {
-            return LoginSystem.login(email, password);
+            success = connection.login(email, password, username);
         }
+        if (!success) {
+            System.out.println("Authentication failed: " + connection.getFailureReason());
+        }
+        return success;
     }
 
     private void initializeConnection() throws IOException {
-        socket = new Socket(serverIP, serverPort);
-        input = new DataInputStream(socket.getInputStream());
-        output = new DataOutputStream(socket.getOutputStream());
+        connection = new ChatConnection(serverIP, serverPort);
         System.out.println("Connected to server: " + serverIP + ":" + serverPort);
     }
 
@@ -63,50 +60,58 @@ public class ChatClient {
         return username.isEmpty() ? "Anonymous" : username;
     }
 
-    private void sendUsername(String username) throws IOException {
-        output.writeUTF(username);
-        output.flush();
-    }
-
     private void startMessageListener() {
         Thread listener = new Thread(this::listenForMessages);
         listener.setDaemon(true);
         listener.start();
     }
 
+    // A line typed during a reconnect, or one that meets the drop itself, is not sent
     private void handleUserInput() {
-        try {
-            while (true) {
-                String message = scanner.nextLine();
+        while (!connection.isClosed()) {
+            String message = scanner.nextLine();
+            try {
                 if (message.equalsIgnoreCase("/exit")) {
-                    output.writeUTF("/exit");
+                    connection.send("/exit");
                     break;
                 }
-                output.writeUTF(message);
-                output.flush();
+                String[] command = message.trim().split("\\s+", 2);
+                if (command[0].equalsIgnoreCase("/send")) {
+                    String problem = connection.sendFile(command.length > 1 ? command[1] : "");
+                    if (problem != null) System.out.println("[File] " + problem);
+                    continue;
+                }
+                connection.send(message);
+            } catch (IOException e) {
+                if (connection.isClosed()) break;
+                System.out.println("[Not sent, the connection was lost: " + e.getMessage() + "]");
+                ExceptionHandler.handle("Sending message", e);
             }
-        } catch (IOException e) {
-            System.err.println("Error sending message: " + e.getMessage());
-            ExceptionHandler.handle("Sending message", e);
         }
     }
 
+    // A dropped connection is resumed in the background; typing carries on afterwards
     private void listenForMessages() {
-        try {
-            while (true) {
-                String message = input.readUTF();
-                System.out.println(message);
+        while (true) {
+            try {
+                System.out.println(connection.readMessage());
+            } catch (IOException e) {
+                if (connection.isClosed()) return;
+                System.out.println("[Connection lost, reconnecting...]");
+                if (!connection.reconnect()) {
+                    System.out.println("[Server disconnected]");
+                    ExceptionHandler.handle("Listening for messages", e);
+                    // Ends the input loop at the next line typed
+                    connection.close();
+                    return;
+                }
+                System.out.println("[Reconnected]");
             }
-        } catch (IOException e) {
-            System.out.println("[Server disconnected]");
-            ExceptionHandler.handle("Listening for messages", e);
         }
     }
 
     private void closeConnections() {
-        try { if (input != null) input.close(); } catch (IOException ignored) {}
-        try { if (output != null) output.close(); } catch (IOException ignored) {}
-        try { if (socket != null && !socket.isClosed()) socket.close(); } catch (IOException ignored) {}
+        if (connection != null) connection.close();
         scanner.close();
     }
 
@@ -1,21 +1,30 @@
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
 import java.awt.*;
 import java.io.*;
-import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChatClientGUI extends JFrame {
+    // Scrollback is capped so a client can sit in a busy room indefinitely
+    private static final int MAX_LINES = Math.max(100, ServerConfig.intProperty("chat.gui.scrollbackLines", 5000));
+    private static final int MAX_LINE_CHARS = 10_000;
+    private static final int FRAME_MILLIS = 16;
 
     private JTextArea chatArea;
     private JTextField inputField;
     private JButton sendButton;
     private JButton connectButton;
     private JTextField ipField, portField;
-    private Socket socket;
-    private DataInputStream input;
-    private DataOutputStream output;
+    private ChatConnection connection;
     private String username;
+    private String sessionToken; // lets a reconnect skip the login dialogs
 
     private Thread listenerThread;
+    // Lines waiting for the next frame; filled by any thread, drained on the EDT
+    private final Queue<String> pendingLines = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
 
     public ChatClientGUI() {
         setTitle("My Chat Application");
@@ -26,6 +35,7 @@ public class ChatClientGUI extends JFrame {
 
         initConnectionPanel();
         initChatPanel();
+        new Timer(FRAME_MILLIS, e -> renderPendingLines()).start();
 
         setVisible(true);
     }
@@ -98,24 +108,25 @@ public class ChatClientGUI extends JFrame {
         }
 
         try {
-            socket = new Socket(serverIP, port);
-            input = new DataInputStream(socket.getInputStream());
-            output = new DataOutputStream(socket.getOutputStream());
-            chatArea.append("[Connected to server " + serverIP + ":" + port + "]\n");
-
-            // FIXED — Login is handled locally ONLY (not through server)
-            if (!performLogin()) {
-                JOptionPane.showMessageDialog(this, "Login failed. Disconnecting.");
-                closeConnections();
-                return;
+            connection = new ChatConnection(serverIP, port);
+            showLine("[Connected to server " + serverIP + ":" + port + "]");
+
+            // Credentials are checked by the server; a saved session token skips the dialogs
+            boolean resumed = sessionToken != null && connection.resume(sessionToken, username);
+            if (!resumed) {
+                if (sessionToken != null) {
+                    // token rejected; the server closed that connection, so start over
+                    sessionToken = null;
+                    connection.close();
+                    connection = new ChatConnection(serverIP, port);
+                }
+                if (!performLogin()) {
+                    JOptionPane.showMessageDialog(this, "Login failed. Disconnecting.");
+                    closeConnections();
+                    return;
+                }
             }
-
-            username = JOptionPane.showInputDialog(this, "Enter your username:", "User", JOptionPane.PLAIN_MESSAGE);
-            if (username == null || username.trim().isEmpty()) username = "Anonymous";
-
-            // IMPORTANT FIX: Send ONLY username as first message
-            output.writeUTF(username);
-            output.flush();
+            sessionToken = connection.getSessionToken();
 
             startMessageListener();
 
@@ -130,7 +141,7 @@ public class ChatClientGUI extends JFrame {
         }
     }
 
-    private boolean performLogin() {
+    private boolean performLogin() throws IOException {
         String[] options = {"Login", "Register"};
         int choice = JOptionPane.showOptionDialog(
                 this, "Do you have an account?", "Login System",
@@ -143,36 +154,43 @@ public class ChatClientGUI extends JFrame {
         String password = JOptionPane.showInputDialog(this, "Enter your password:");
         if (password == null) return false;
 
+        username = JOptionPane.showInputDialog(this, "Enter your username:", "User", JOptionPane.PLAIN_MESSAGE);
+        if (username == null || username.trim().isEmpty()) username = "Anonymous";
+
         boolean success;
         if (choice == JOptionPane.YES_OPTION) {
-            success = LoginSystem.login(email, password);
+            success = connection.login(email, password, username);
         } else {
-            success = LoginSystem.register(email, password);
+            success = connection.register(email, password, username);
         }
 
         if (!success) {
-            JOptionPane.showMessageDialog(this, "Authentication failed!", "Error", JOptionPane.ERROR_MESSAGE);
+            JOptionPane.showMessageDialog(this, "Authentication failed: " + connection.getFailureReason(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
         }
 
         return success;
     }
 
+    // Reconnects on its own after a drop; only a rejected session needs the Connect button again
     private void startMessageListener() {
         listenerThread = new Thread(() -> {
-            try {
-                while (true) {
-                    String msg = input.readUTF();
-                    SwingUtilities.invokeLater(() -> {
-                        chatArea.append(msg + "\n");
-                        chatArea.setCaretPosition(chatArea.getDocument().getLength());
-                    });
+            while (true) {
+                try {
+                    showLine(connection.readMessage());
+                } catch (IOException e) {
+                    if (connection.isClosed()) return;
+                    showLine("[Connection lost, reconnecting...]");
+                    if (connection.reconnect()) {
+                        sessionToken = connection.getSessionToken();
+                        showLine("[Reconnected]");
+                        continue;
+                    }
+                    showLine("[Server disconnected]");
+                    ExceptionHandler.handle("GUI listener", e);
+                    closeConnections();
+                    return;
                 }
-            } catch (IOException e) {
-                SwingUtilities.invokeLater(() -> chatArea.append("[Server disconnected]\n"));
-                sendButton.setEnabled(false);
-                ExceptionHandler.handle("GUI listener", e);
-            } finally {
-                closeConnections();
             }
         });
 
@@ -185,25 +203,65 @@ public class ChatClientGUI extends JFrame {
         if (msg.isEmpty()) return;
 
         try {
-            output.writeUTF(msg);
-            output.flush();
+            String[] command = msg.split("\\s+", 2);
+            if (command[0].equalsIgnoreCase("/send")) {
+                String problem = connection.sendFile(command.length > 1 ? command[1] : "");
+                if (problem != null) showLine("[File] " + problem);
+                inputField.setText("");
+                return;
+            }
+            connection.send(msg);
             inputField.setText("");
 
             if (msg.equalsIgnoreCase("/exit")) {
-                chatArea.append("[You left the chat]\n");
+                showLine("[You left the chat]");
                 closeConnections();
                 sendButton.setEnabled(false);
             }
         } catch (IOException e) {
-            chatArea.append("[Failed to send message]\n");
+            // The text stays in the field, so it can be sent again once reconnected
+            showLine("[Not sent: " + e.getMessage() + "]");
             ExceptionHandler.handle("GUI send message", e);
         }
     }
 
+    /**
+     * Queues a line for display. Lines are rendered in one batch per frame by
+     * {@link #renderPendingLines()}; if the EDT falls behind, the oldest pending lines are
+     * discarded, since they would be trimmed from the scrollback anyway.
+     */
+    private void showLine(String line) {
+        if (line.length() > MAX_LINE_CHARS) line = line.substring(0, MAX_LINE_CHARS) + "...";
+        pendingLines.add(line);
+        if (pendingCount.incrementAndGet() > MAX_LINES && pendingLines.poll() != null) {
+            pendingCount.decrementAndGet();
+        }
+    }
+
+    // EDT only
+    private void renderPendingLines() {
+        if (pendingCount.get() == 0) return;
+        StringBuilder batch = new StringBuilder();
+        String line;
+        while ((line = pendingLines.poll()) != null) {
+            pendingCount.decrementAndGet();
+            batch.append(line).append('\n');
+        }
+        chatArea.append(batch.toString());
+        // The text ends with a newline, so the last line the area counts is always empty
+        int excess = chatArea.getLineCount() - 1 - MAX_LINES;
+        if (excess > 0) {
+            try {
+                chatArea.replaceRange("", 0, chatArea.getLineEndOffset(excess - 1));
+            } catch (BadLocationException e) {
+                chatArea.setText("");
+            }
+        }
+        chatArea.setCaretPosition(chatArea.getDocument().getLength());
+    }
+
     private void closeConnections() {
-        try { if (input != null) input.close(); } catch (IOException ignored) {}
-        try { if (output != null) output.close(); } catch (IOException ignored) {}
-        try { if (socket != null && !socket.isClosed()) socket.close(); } catch (IOException ignored) {}
+        if (connection != null) connection.close();
 
         SwingUtilities.invokeLater(() -> {
             sendButton.setEnabled(false);
@@ -0,0 +1,353 @@
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Client side of a server connection: the socket, its streams, protocol negotiation and
+ * the authentication handshake. Shared by {@link ChatClient} and {@link ChatClientGUI}.
+ *
+ * Version 2 framing is offered on connect; a server that does not echo the offer is
+ * reconnected to in version 1. -Dchat.protocol=1 skips the offer.
+ *
+ * Server pings are answered inside {@link #readFrame()} and never returned to the caller,
+ * so a connection stays alive only while something is reading from it.
+ *
+ * After a drop, {@link #reconnect()} comes back with jittered exponential backoff and
+ * resumes the session from the last room message seen. Tunables: chat.reconnect.initialMillis,
+ * chat.reconnect.maxMillis and chat.reconnect.attempts (0 retries forever). A server that
+ * turns the connection away as busy is retried in the same way. Sends made meanwhile fail
+ * at once rather than wait out the backoff, so they never reach the new connection ahead
+ * of its handshake and never stall a UI thread.
+ *
+ * Files sent with {@link #sendFile(String)} and received from others are handled by
+ * {@link ClientFileTransfers}; their frames, like pings, never reach the caller.
+ *
+ * With -Dchat.tls=true the connection is made over TLS (see {@link TlsSupport}); a
+ * reconnect resumes the previous TLS session where the server still has it.
+ */
+public class ChatConnection implements Closeable {
+    private static final long RECONNECT_INITIAL_MILLIS = Math.max(1, ServerConfig.intProperty("chat.reconnect.initialMillis", 500));
+    private static final long RECONNECT_MAX_MILLIS = Math.max(RECONNECT_INITIAL_MILLIS, ServerConfig.intProperty("chat.reconnect.maxMillis", 30_000));
+    private static final int RECONNECT_ATTEMPTS = ServerConfig.intProperty("chat.reconnect.attempts", 20);
+
+    private final String serverIP;
+    private final int serverPort;
+    private final int preferredVersion;
+    // Replaced by reconnect() on the reading thread while another thread may be sending
+    private volatile Socket socket;
+    private volatile DataInputStream input;
+    private volatile DataOutputStream output;
+    private volatile int protocolVersion = WireProtocol.VERSION_1;
+    private volatile boolean closed;
+    private String username;
+    private String sessionToken;
+    private String failureReason;
+    // The last refusal was the server being busy rather than the session being rejected
+    private boolean busy;
+    private volatile long lastSequence;
+    // Set while reconnect() runs; other senders are refused instead of queueing on the lock
+    private volatile boolean reconnecting;
+    // Fair, so a message typed during an upload goes out after the chunk being written.
+    // reconnect() takes it only for each attempt's handshake, never across the backoff.
+    private final ReentrantLock sendLock = new ReentrantLock(true);
+    // Waited on between reconnect attempts, so close() cuts the backoff short
+    private final Object backoff = new Object();
+    private final ClientFileTransfers files = new ClientFileTransfers(this);
+
+    public ChatConnection(String serverIP, int serverPort) throws IOException {
+        this(serverIP, serverPort, ServerConfig.intProperty("chat.protocol", WireProtocol.VERSION_2));
+    }
+
+    public ChatConnection(String serverIP, int serverPort, int preferredVersion) throws IOException {
+        this.serverIP = serverIP;
+        this.serverPort = serverPort;
+        this.preferredVersion = preferredVersion;
+        open();
+        if (preferredVersion == WireProtocol.VERSION_2) negotiate();
+    }
+
+    private void open() throws IOException {
+        protocolVersion = WireProtocol.VERSION_1;
+        if (TlsSupport.isClientEnabled()) {
+            SSLSocket secure = (SSLSocket) TlsSupport.clientSocketFactory().createSocket(serverIP, serverPort);
+            socket = secure;
+            TlsSupport.verifyHostname(secure);
+            try {
+                secure.startHandshake();
+            } catch (IOException e) {
+                try { secure.close(); } catch (IOException ignored) {}
+                throw e;
+            }
+        } else {
+            socket = new Socket(serverIP, serverPort);
+        }
+        input = new DataInputStream(socket.getInputStream());
+        output = new DataOutputStream(socket.getOutputStream());
+    }
+
+    private void negotiate() throws IOException {
+        output.writeUTF(WireProtocol.HELLO);
+        output.flush();
+        String reply;
+        try {
+            reply = input.readUTF();
+        } catch (IOException e) {
+            reply = null;
+        }
+        if (WireProtocol.HELLO.equals(reply)) {
+            protocolVersion = WireProtocol.VERSION_2;
+            return;
+        }
+        String[] refusal = reply == null ? null : AuthHandshake.parse(reply);
+        if (refusal != null && refusal.length == 2 && refusal[0].equals(AuthHandshake.BUSY)) {
+            closeSocket();
+            failureReason = refusal[1];
+            throw new IOException(refusal[1]);
+        }
+        // An older server took the offer as its handshake and rejected it
+        closeSocket();
+        open();
+    }
+
+    public boolean login(String email, String password, String username) throws IOException {
+        this.username = username;
+        return authenticate(AuthHandshake.login(email, password, username));
+    }
+
+    public boolean register(String email, String password, String username) throws IOException {
+        this.username = username;
+        return authenticate(AuthHandshake.register(email, password, username));
+    }
+
+    /** Skips the credential check by presenting a token from an earlier successful login. */
+    public boolean resume(String token, String username) throws IOException {
+        this.username = username;
+        return authenticate(AuthHandshake.resume(token, username));
+    }
+
+    /**
+     * Reopens a dropped connection and resumes the session, asking the server for the
+     * room messages sent since the last one seen. Attempts are spread with full jitter
+     * over an exponentially growing window, so clients cut off together by a restart do
+     * not all come back at once. Returns false if the server rejects the session, the
+     * attempts run out or the connection is closed meanwhile; the caller must then log
+     * in again. Other threads' sends fail with an IOException until it returns.
+     */
+    public boolean reconnect() {
+        // Taken once so a send already writing finishes first and later ones see the flag
+        sendLock.lock();
+        try {
+            reconnecting = true;
+            closeSocket();
+            files.abandon();
+        } finally {
+            sendLock.unlock();
+        }
+        try {
+            return sessionToken != null && resumeSession();
+        } finally {
+            reconnecting = false;
+        }
+    }
+
+    private boolean resumeSession() {
+        long window = RECONNECT_INITIAL_MILLIS;
+        for (int attempt = 1; !closed && (RECONNECT_ATTEMPTS <= 0 || attempt <= RECONNECT_ATTEMPTS); attempt++) {
+            try {
+                synchronized (backoff) {
+                    if (!closed) backoff.wait(1 + ThreadLocalRandom.current().nextLong(window));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            window = Math.min(RECONNECT_MAX_MILLIS, window * 2);
+            if (closed) break;
+            sendLock.lock();
+            try {
+                open();
+                if (preferredVersion == WireProtocol.VERSION_2) negotiate();
+                long seen = lastSequence;
+                if (authenticate(seen > 0
+                        ? AuthHandshake.resume(sessionToken, username, seen)
+                        : AuthHandshake.resume(sessionToken, username))) {
+                    return true;
+                }
+                if (!busy) return false;
+                closeSocket();
+            } catch (IOException e) {
+                closeSocket();
+            } finally {
+                sendLock.unlock();
+            }
+        }
+        return false;
+    }
+
+    private boolean authenticate(String handshake) throws IOException {
+        write(WireProtocol.CONTROL, handshake);
+        String[] reply = AuthHandshake.parse(readMessage());
+        if (reply.length == 2 && reply[0].equals(AuthHandshake.OK)) {
+            sessionToken = reply[1];
+            return true;
+        }
+        busy = reply.length == 2 && reply[0].equals(AuthHandshake.BUSY);
+        failureReason = reply.length == 2 ? reply[1] : "Unexpected reply from server";
+        return false;
+    }
+
+    public void send(String message) throws IOException {
+        send(WireProtocol.typeOf(message), message);
+    }
+
+    /** Fails with an IOException, without waiting, while {@link #reconnect()} is running. */
+    public void send(byte type, String message) throws IOException {
+        boolean exit = type == WireProtocol.CONTROL && message.equalsIgnoreCase("/exit");
+        // Once the user has left, a dropped connection must not be brought back
+        if (exit) stopReconnecting();
+        // Left while the connection was down: there is nobody to tell
+        if (exit && reconnecting) return;
+        if (reconnecting) throw new IOException("reconnecting, try again shortly");
+        sendLock.lock();
+        try {
+            if (exit && socket.isClosed()) return;
+            // Queued for the lock just as a reconnect began
+            if (reconnecting) throw new IOException("reconnecting, try again shortly");
+            writeFrame(type, message);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // Locked because the reading thread answers pings while another thread may be sending
+    private void write(byte type, String message) throws IOException {
+        sendLock.lock();
+        try {
+            writeFrame(type, message);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void writeFrame(byte type, String message) throws IOException {
+        if (protocolVersion == WireProtocol.VERSION_2) {
+            output.write(WireProtocol.encode(type, message));
+        } else {
+            output.writeUTF(message);
+        }
+        output.flush();
+    }
+
+    /**
+     * Offers a file to a user or room, given the argument of /send ({@code <user|#room> <file>}).
+     * Returns null once the offer has been sent, or why the file cannot be sent; progress
+     * and the outcome arrive later as messages.
+     */
+    public String sendFile(String argument) throws IOException {
+        if (protocolVersion != WireProtocol.VERSION_2) return "This server does not support file transfer.";
+        return files.offer(argument);
+    }
+
+    /**
+     * Sends {@code count} bytes of {@code file} from {@code position} as one FILE frame,
+     * straight from the file to the socket.
+     */
+    void sendFileChunk(long transferId, FileChannel file, long position, int count) throws IOException {
+        if (reconnecting) throw new IOException("file transfer abandoned");
+        sendLock.lock();
+        try {
+            // A reconnect while this chunk waited for the lock has dropped its transfer
+            if (!files.isSending(transferId, file)) throw new IOException("file transfer abandoned");
+            output.write(WireProtocol.fileHeader(transferId, count));
+            WritableByteChannel target = Channels.newChannel(output);
+            for (long sent = 0; sent < count; ) {
+                long n = file.transferTo(position + sent, count - sent, target);
+                if (n <= 0) {
+                    // The file shrank under us and the frame cannot be finished
+                    closeSocket();
+                    throw new IOException("file changed while it was being sent");
+                }
+                sent += n;
+            }
+            output.flush();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    public String readMessage() throws IOException {
+        return readFrame().getText();
+    }
+
+    /** The next frame; version 1 servers send untyped strings, reported as SYSTEM. */
+    public WireProtocol.Message readFrame() throws IOException {
+        if (protocolVersion == WireProtocol.VERSION_1) {
+            return new WireProtocol.Message(WireProtocol.SYSTEM, input.readUTF());
+        }
+        while (true) {
+            WireProtocol.Message message = WireProtocol.read(input, files::receive);
+            if (message == null) continue;
+            if (message.getSequence() > lastSequence) lastSequence = message.getSequence();
+            if (message.getType() != WireProtocol.CONTROL) return message;
+            String text = message.getText();
+            if (text.equals(WireProtocol.PING)) {
+                write(WireProtocol.CONTROL, WireProtocol.PONG);
+            } else if (FileTransfer.isTransferFrame(text)) {
+                String notice = files.handle(text);
+                if (notice != null) return new WireProtocol.Message(WireProtocol.SYSTEM, notice);
+            } else {
+                return message;
+            }
+        }
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    public String getFailureReason() {
+        return failureReason;
+    }
+
+    /** The number of the last room message received, or 0. */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /** True once closed, or once the user has sent /exit. */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        stopReconnecting();
+        closeSocket();
+        files.abandon();
+    }
+
+    private void stopReconnecting() {
+        closed = true;
+        synchronized (backoff) {
+            backoff.notifyAll();
+        }
+    }
+
+    private void closeSocket() {
+        try { input.close(); } catch (IOException ignored) {}
+        try { output.close(); } catch (IOException ignored) {}
+        try { if (!socket.isClosed()) socket.close(); } catch (IOException ignored) {}
+    }
+}
@@ -1,24 +1,109 @@
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Collections;
-import java.util.HashSet;
+import java.security.GeneralSecurityException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 
 public class ChatServer {
     private final int port;
-    private final Set<ClientHandler> clients = Collections.synchronizedSet(new HashSet<>());
-    private final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
+    private final ServerConfig config;
+    private Executor handlerExecutor;
+    // Null unless chat.tls.enabled
+    private SSLContext tls;
+    private ExecutorService handshakes;
+    private final ClientRegistry clients = new ClientRegistry();
+    private final RoomDirectory rooms = new RoomDirectory();
+    private MessageStore messageStore;
+    private SearchIndex searchIndex;
+    private final SessionTokens sessionTokens = SessionTokens.fromSystemProperties();
+    private final ServerMetrics metrics = new ServerMetrics(this);
+    private final TokenBucket fanoutLimit;
+    private final Sequencer sequencer;
+    private final FileTransfers fileTransfers;
+    private final AdmissionControl admission;
+    private final ConcurrentHashMap<String, DetachedSession> detached = new ConcurrentHashMap<>();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    // One wheel for every connection's heartbeat and idle deadlines
+    private final HashedWheelTimer wheel = new HashedWheelTimer("chat-heartbeat", 100, TimeUnit.MILLISECONDS, 512);
+    // CPU-bound work (password hashing) that must stay off the NIO event loops, and the
+    // short setup of each new blocking-engine connection
+    private final ExecutorService workers = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "chat-worker");
+                t.setDaemon(true);
+                return t;
+            });
+    // Delayed work such as resuming a throttled NIO connection
+    private final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-timer");
+        t.setDaemon(true);
+        return t;
+    });
 
     public ChatServer(int port) {
+        this(port, ServerConfig.defaults());
+    }
+
+    public ChatServer(int port, ServerConfig config) {
         this.port = port;
+        this.config = config;
+        this.fanoutLimit = config.getFanoutPerSecond() > 0
+                ? new TokenBucket(config.getFanoutPerSecond(), config.getFanoutPerSecond()) : null;
+        this.sequencer = new Sequencer(this, config.getResumeBufferMessages(), config.getSequencerConsumers());
+        this.fileTransfers = new FileTransfers(config);
+        this.admission = new AdmissionControl(config);
+    }
+
+    /** The rooms a client was in when its connection dropped. */
+    static final class DetachedSession {
+        final Set<String> rooms;
+        final String activeRoom;
+
+        DetachedSession(Set<String> rooms, String activeRoom) {
+            this.rooms = rooms;
+            this.activeRoom = activeRoom;
+        }
+    }
+
+    /** A TLS handshake on a newly accepted connection; returns the session it settled on. */
+    interface Handshake {
+        SSLSession run() throws IOException;
     }
 
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            log("Server started on port " + port);
+        if (config.isTlsEnabled() && !startTls()) return;
+        openMessageStore();
+        int leftovers = fileTransfers.deleteLeftovers();
+        if (leftovers > 0) log("Deleted " + leftovers + " unfinished file transfers from the last run");
+        startMetrics();
+        sequencer.start();
+        timers.scheduleAtFixedRate(admission::forgetIdle, 1, 1, TimeUnit.MINUTES);
+        if (config.getEngine() == ServerConfig.Engine.NIO) {
+            startNio();
+            return;
+        }
+        handlerExecutor = HandlerExecutors.create(config);
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            // Accepted sockets inherit it, and it has to be set before the handshake to count
+            if (config.getReceiveBufferBytes() > 0) serverSocket.setReceiveBufferSize(config.getReceiveBufferBytes());
+            serverSocket.bind(new InetSocketAddress(port), config.getAcceptBacklog());
+            log("Server started on port " + port + " (" + HandlerExecutors.describe(config)
+                    + (tls != null ? ", TLS" : "") + ")");
             acceptClientConnections(serverSocket);
         } catch (IOException e) {
             log("Server error: " + e.getMessage());
@@ -26,11 +111,76 @@ public class ChatServer {
         }
     }
 
+    // A server asked for TLS never falls back to plaintext
+    private boolean startTls() {
+        try {
+            tls = TlsSupport.serverContext(config);
+        } catch (IOException | GeneralSecurityException e) {
+            log("Server not started, TLS is enabled but unavailable: " + e.getMessage());
+            ExceptionHandler.handle("TLS setup error", e);
+            return false;
+        }
+        handshakes = Executors.newFixedThreadPool(config.getTlsHandshakeThreads(), r -> {
+            Thread t = new Thread(r, "chat-tls-handshake");
+            t.setDaemon(true);
+            return t;
+        });
+        return true;
+    }
+
+    private void openMessageStore() {
+        try {
+            messageStore = MessageStore.fromSystemProperties();
+            log("Message history ready, last message id " + messageStore.lastId());
+            searchIndex = new SearchIndex(messageStore);
+            searchIndex.start();
+            // Appends only apply retention when a segment fills up, which a quiet server may never do
+            timers.scheduleAtFixedRate(messageStore::expire, 10, 10, TimeUnit.MINUTES);
+        } catch (IOException e) {
+            log("Message history unavailable: " + e.getMessage());
+            ExceptionHandler.handle("Opening message history", e);
+        }
+    }
+
+    private void startMetrics() {
+        metrics.registerMBean();
+        timers.scheduleAtFixedRate(metrics::sample, 1, 1, TimeUnit.SECONDS);
+        int interval = config.getMetricsSnapshotSeconds();
+        if (interval > 0) {
+            timers.scheduleAtFixedRate(() -> metrics.writeSnapshot(config.getMetricsFile()),
+                    interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    private void startNio() {
+        try (NioServerEngine engine = new NioServerEngine(this, config.getEventLoops())) {
+            engine.bind(port);
+            log("Server started on port " + port + " (nio, " + engine.getEventLoopCount() + " event loops"
+                    + (tls != null ? ", TLS" : "") + ")");
+            engine.acceptClientConnections();
+        } catch (IOException e) {
+            log("Server error: " + e.getMessage());
+            ExceptionHandler.handle("Server start error", e);
+        }
+    }
+
     private void acceptClientConnections(ServerSocket serverSocket) {
         while (true) {
             try {
                 Socket socket = serverSocket.accept();
-                handleNewClient(socket);
+                AdmissionControl.Permit permit = admit(socket);
+                if (permit == null) continue;
+                if (tls == null) {
+                    handleNewClient(socket, permit);
+                    continue;
+                }
+                SSLSocket secure = (SSLSocket) tls.getSocketFactory().createSocket(socket, null, socket.getPort(), true);
+                secure.setUseClientMode(false);
+                // The timeout closes the plain socket: closing an SSLSocket mid-handshake can block
+                secure(socket, String.valueOf(socket.getRemoteSocketAddress()), permit, () -> {
+                    secure.startHandshake();
+                    return secure.getSession();
+                }, () -> handleNewClient(secure, permit));
             } catch (IOException e) {
                 log("Error accepting client connection: " + e.getMessage());
                 ExceptionHandler.handle("Client connection accept error", e);
@@ -38,37 +188,295 @@ public class ChatServer {
         }
     }
 
-    private void handleNewClient(Socket socket) {
-        ClientHandler handler = new ClientHandler(socket, this);
-        clients.add(handler);
-        new Thread(handler).start();
-        log("New client connected: " + socket.getRemoteSocketAddress());
+    /**
+     * Sets the handler up on a worker, so the accept thread goes straight back to accepting,
+     * then submits its reader and writer side by side. Neither may be submitted from a task
+     * on the handler executor: a fixed pool would fill with readers whose writers wait
+     * behind them in its queue.
+     */
+    private void handleNewClient(Socket socket, AdmissionControl.Permit permit) {
+        workers.execute(() -> {
+            ClientHandler handler = new ClientHandler(socket, this);
+            clientConnected(handler, permit);
+            handlerExecutor.execute(handler);
+            handlerExecutor.execute(handler::writeLoop);
+        });
     }
 
-    public void broadcast(String message, ClientHandler excludeClient) {
-        synchronized (clients) {
-            for (ClientHandler client : new HashSet<>(clients)) {
-                if (client != excludeClient && client.isConnected()) {
-                    client.sendMessage(message);
+    /**
+     * Decides on the accepting thread whether a new connection is let in, before anything
+     * is spent on it. An admitted connection gets the configured socket options and a
+     * permit its handler gives back when it closes; a refused one is told why and closed,
+     * and null is returned.
+     */
+    AdmissionControl.Permit admit(Socket socket) {
+        AdmissionControl.Permit permit = admission.admit(socket.getInetAddress());
+        if (!permit.isAdmitted()) {
+            reject(socket, permit.getRejection());
+            return null;
+        }
+        try {
+            socket.setTcpNoDelay(config.isTcpNoDelay());
+            if (config.getSendBufferBytes() > 0) socket.setSendBufferSize(config.getSendBufferBytes());
+            return permit;
+        } catch (IOException e) {
+            // Already gone
+            permit.release();
+            closeQuietly(socket);
+            return null;
+        }
+    }
+
+    /**
+     * The client has not said anything yet, so the reason goes out as a bare string, which
+     * the client reads as its handshake reply whichever protocol it speaks. Under TLS there
+     * is nothing to say it with short of a handshake, so the connection is just closed.
+     */
+    private void reject(Socket socket, String reason) {
+        if (tls == null) {
+            try {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeUTF(AuthHandshake.busy(reason));
+                out.flush();
+                socket.shutdownOutput();
+                // Closing with the client's first frame unread would reset the connection and lose the reason
+                wheel.schedule(() -> closeQuietly(socket), 1, TimeUnit.SECONDS);
+                return;
+            } catch (IOException ignored) {}
+        }
+        closeQuietly(socket);
+    }
+
+    /** The server's TLS context, or null when clients connect in plaintext. */
+    SSLContext getTlsContext() {
+        return tls;
+    }
+
+    /**
+     * Runs a new connection's TLS handshake on the handshake pool, so neither the accept
+     * loop nor an event loop ever does the key exchange, then hands the connection on to
+     * {@code onSecured}. A connection that has not finished its handshake within
+     * chat.tls.handshakeTimeoutSeconds is closed, and its admission permit released.
+     */
+    void secure(Closeable connection, String remote, AdmissionControl.Permit permit,
+                Handshake handshake, Runnable onSecured) {
+        AtomicBoolean settled = new AtomicBoolean();
+        HashedWheelTimer.Timeout timeout = wheel.schedule(() -> {
+            if (!settled.compareAndSet(false, true)) return;
+            metrics.handshakeFailed();
+            log("TLS handshake with " + remote + " timed out");
+            permit.release();
+            closeQuietly(connection);
+        }, config.getTlsHandshakeTimeoutSeconds(), TimeUnit.SECONDS);
+        handshakes.execute(() -> {
+            long start = System.nanoTime();
+            long startMillis = System.currentTimeMillis();
+            try {
+                SSLSession session = handshake.run();
+                // Lost the race with the timeout, which has closed the connection
+                if (!settled.compareAndSet(false, true)) return;
+                timeout.cancel();
+                metrics.handshakeCompleted(TlsSupport.isResumed(session, startMillis), System.nanoTime() - start);
+                onSecured.run();
+            } catch (IOException e) {
+                if (!settled.compareAndSet(false, true)) return;
+                timeout.cancel();
+                metrics.handshakeFailed();
+                log("TLS handshake with " + remote + " failed: " + e.getMessage());
+                permit.release();
+                closeQuietly(connection);
+            }
+        });
+    }
+
+    private static void closeQuietly(Closeable connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {}
+    }
+
+    void clientConnected(ClientHandler handler, AdmissionControl.Permit permit) {
+        handler.setPermit(permit);
+        metrics.connectionAccepted();
+        log("New client connected: " + handler.getRemoteAddress());
+        handler.startHeartbeat();
+    }
+
+    /**
+     * Registers a client that has authenticated, from which point it receives broadcasts,
+     * and returns the username it joins under. A name held by another connection of the
+     * same account is taken over and that connection closed, its rooms kept for the new
+     * one to resume into as if it had dropped; otherwise a name already in use gets a
+     * numeric suffix.
+     */
+    String addClient(ClientHandler handler, String requested) {
+        String name = requested;
+        int suffix = 1;
+        while (true) {
+            ClientHandler holder = clients.claimName(name, handler);
+            if (holder == null) break;
+            if (handler.getAccount() != null && handler.getAccount().equals(holder.getAccount())) {
+                if (clients.takeOverName(name, holder, handler)) {
+                    log(holder.getUsername() + " signed in again from " + handler.getRemoteAddress() + ", closing the old connection");
+                    // Its own disconnect() sees the name taken and leaves the session alone
+                    holder.detachSession();
+                    holder.abort();
+                    break;
                 }
+                continue;
             }
+            name = requested + "-" + ++suffix;
         }
+        clients.add(handler);
+        return name;
+    }
+
+    /** The joined client with this username, ignoring case, or null. */
+    public ClientHandler findClient(String username) {
+        return clients.find(username);
+    }
+
+    public void broadcast(String message, ClientHandler excludeClient) {
+        broadcast(Frame.of(message), excludeClient);
+    }
+
+    /** Sends to every joined client, in the same order as room messages; see {@link Sequencer}. */
+    public void broadcast(Frame frame, ClientHandler excludeClient) {
+        sequencer.publish(null, frame.getType(), frame.getText(), excludeClient);
+    }
+
+    /**
+     * Numbers a message for {@code room} and queues it for every member but {@code sender},
+     * in the one order all clients see; returns the frame, which is kept for clients that
+     * reconnect. Every recipient queues the same frame, encoded at most once per protocol version.
+     */
+    public Frame broadcastToRoom(String room, byte type, String message, ClientHandler sender) {
+        return sequencer.publish(room, type, message, sender);
+    }
+
+    public Sequencer getSequencer() {
+        return sequencer;
+    }
+
+    /** Remembers a dropped client's rooms for the resume grace period. */
+    void detach(String account, Set<String> rooms, String activeRoom) {
+        int grace = config.getResumeGraceSeconds();
+        if (account == null || grace == 0 || rooms.isEmpty()) return;
+        DetachedSession session = new DetachedSession(rooms, activeRoom);
+        detached.put(account, session);
+        wheel.schedule(() -> detached.remove(account, session), grace, TimeUnit.SECONDS);
+    }
+
+    /** The rooms to restore for a resuming client, or null. */
+    DetachedSession reattach(String account) {
+        return account == null ? null : detached.remove(account);
     }
 
     public void removeClient(ClientHandler client) {
         clients.remove(client);
-        log("Client disconnected: " + client.getUsername());
+        clients.releaseName(client.getUsername(), client);
+        long dropped = client.getDroppedMessages();
+        long limited = client.getRateLimitedMessages();
+        log("Client disconnected: " + client.getUsername()
+                + String.format(" (%.1f messages per write", client.getWriteStats().averageBatchSize())
+                + (dropped > 0 ? ", " + dropped + " outbound messages dropped" : "")
+                + (limited > 0 ? ", " + limited + " inbound messages rate limited" : "") + ")");
+    }
+
+    public RateLimiter newRateLimiter() {
+        return new RateLimiter(config, fanoutLimit);
+    }
+
+    void recordRateLimited() {
+        rateLimited.increment();
+    }
+
+    /** Inbound messages throttled, dropped or refused across all connections. */
+    public long getRateLimitedCount() {
+        return rateLimited.sum();
+    }
+
+    void recordTimedOut() {
+        timedOut.increment();
+    }
+
+    /** Connections dropped for missing heartbeats or sitting idle. */
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    public HashedWheelTimer getWheel() {
+        return wheel;
+    }
+
+    public ScheduledExecutorService getTimers() {
+        return timers;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Clients that have joined, as of now. */
+    public ClientHandler[] clientSnapshot() {
+        return clients.snapshot();
+    }
+
+    public boolean isAdmin(String account) {
+        return account != null && config.getAdmins().contains(account);
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public RoomDirectory getRooms() {
+        return rooms;
+    }
+
+    /** The chat history, or null if it could not be opened. */
+    public MessageStore getMessageStore() {
+        return messageStore;
+    }
+
+    /** Null if the message history could not be opened. */
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    public FileTransfers getFileTransfers() {
+        return fileTransfers;
+    }
+
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    public SessionTokens getSessionTokens() {
+        return sessionTokens;
+    }
+
+    public Executor getWorkers() {
+        return workers;
     }
 
     public void log(String msg) {
-        String formatted = "[Server " + dtf.format(LocalDateTime.now()) + "] " + msg;
-        System.out.println(formatted);
+        System.out.println("[Server " + CachedClock.dateTime() + "] " + msg);
         ServerLogger.log(msg); // integrated logger
     }
 
+    /**
+     * Logs a chat message from the frame's UTF-8 bytes, the same ones its version 2
+     * encoding and the history use, so the text is encoded only once.
+     */
+    public void logMessage(Frame frame) {
+        // The logger's writer thread does the console echo, off the sender's thread
+        ServerLogger.append(ServerLogger.line(frame.utf8()), config.isEchoMessages());
+    }
+
     public static void main(String[] args) {
         int port = getPortFromArgs(args);
-        ChatServer server = new ChatServer(port);
+        ChatServer server = new ChatServer(port, ServerConfig.fromSystemProperties());
         server.start();
     }
 
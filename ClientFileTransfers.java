@@ -0,0 +1,274 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side of file transfer (see {@link FileTransfer}) for one {@link ChatConnection}.
+ * A file offered with /send is streamed up by its own thread, a chunk at a time and only
+ * as far as the server has granted credit; chat typed meanwhile goes out between chunks.
+ * Incoming files are written straight from the socket to a file under
+ * chat.file.downloadDir (default "downloads").
+ */
+public class ClientFileTransfers {
+    private static final Path DOWNLOAD_DIR = Paths.get(System.getProperty("chat.file.downloadDir", "downloads"));
+
+    private final ChatConnection connection;
+    private final AtomicLong nextRef = new AtomicLong();
+    // Offers waiting for an answer, by reference; then files being sent, by transfer id
+    private final Map<Long, Outgoing> offered = new ConcurrentHashMap<>();
+    private final Map<Long, Outgoing> sending = new ConcurrentHashMap<>();
+    // Written by the reading thread; abandon() may be called from any
+    private final Map<Long, Incoming> receiving = new ConcurrentHashMap<>();
+
+    ClientFileTransfers(ChatConnection connection) {
+        this.connection = connection;
+    }
+
+    /** A file being sent, with the credit the server has granted for it. */
+    private static final class Outgoing {
+        final String name;
+        final FileChannel file;
+        final long size;
+        long id;
+        private long granted;
+        private boolean abandoned;
+
+        Outgoing(String name, FileChannel file) throws IOException {
+            this.name = name;
+            this.file = file;
+            this.size = file.size();
+        }
+
+        synchronized void grant(long bytes) {
+            granted += bytes;
+            notifyAll();
+        }
+
+        // How much may be sent from position, waiting for credit if need be; -1 if abandoned
+        synchronized int awaitCredit(long position) throws InterruptedException {
+            while (granted <= position && !abandoned) {
+                wait();
+            }
+            return abandoned ? -1 : (int) Math.min(FileTransfer.CHUNK_BYTES, granted - position);
+        }
+
+        synchronized void abandon() {
+            abandoned = true;
+            notifyAll();
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /** A file being received. */
+    private static final class Incoming {
+        final String from;
+        final String name;
+        final long size;
+        final Path path;
+        final FileChannel file;
+        long received;
+
+        Incoming(String from, String name, long size, Path path, FileChannel file) {
+            this.from = from;
+            this.name = name;
+            this.size = size;
+            this.path = path;
+            this.file = file;
+        }
+
+        void delete() {
+            try {
+                file.close();
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Offers the file named in a /send argument ({@code <user|#room> <file>}) to the server.
+     * Returns null once the offer is on its way, or why the file cannot be sent.
+     */
+    public String offer(String argument) throws IOException {
+        String[] parts = argument.trim().split("\\s+", 2);
+        if (parts.length < 2) return "Usage: /send <user|#room> <file>";
+        String fileName = parts[1].trim();
+        if (fileName.length() > 1 && fileName.startsWith("\"") && fileName.endsWith("\"")) {
+            fileName = fileName.substring(1, fileName.length() - 1);
+        }
+        Outgoing outgoing;
+        try {
+            Path path = Paths.get(fileName);
+            if (!Files.isRegularFile(path)) return "No such file: " + fileName;
+            outgoing = new Outgoing(FileTransfer.baseName(path.getFileName().toString()),
+                    FileChannel.open(path, StandardOpenOption.READ));
+        } catch (InvalidPathException | IOException e) {
+            return "Cannot read " + fileName + ": " + e.getMessage();
+        }
+        long ref = nextRef.incrementAndGet();
+        offered.put(ref, outgoing);
+        connection.send(WireProtocol.CONTROL, FileTransfer.offer(ref, parts[0], outgoing.name, outgoing.size));
+        return null;
+    }
+
+    /** Handles a transfer CONTROL frame from the server; returns a line for the user, or null. */
+    String handle(String text) {
+        String[] parts = FileTransfer.parse(text);
+        switch (parts[0]) {
+            case FileTransfer.ACCEPT:
+                return parts.length == 4 ? accepted(FileTransfer.number(parts[1]), FileTransfer.number(parts[2]),
+                        FileTransfer.number(parts[3])) : null;
+            case FileTransfer.REJECT: {
+                Outgoing outgoing = parts.length == 3 ? offered.remove(FileTransfer.number(parts[1])) : null;
+                if (outgoing == null) return null;
+                outgoing.close();
+                return "[File] Cannot send " + outgoing.name + ": " + parts[2];
+            }
+            case FileTransfer.CREDIT: {
+                Outgoing outgoing = parts.length == 3 ? sending.get(FileTransfer.number(parts[1])) : null;
+                if (outgoing != null) outgoing.grant(FileTransfer.number(parts[2]));
+                return null;
+            }
+            case FileTransfer.BEGIN:
+                return parts.length == 5 ? begin(FileTransfer.number(parts[1]), parts[2],
+                        FileTransfer.baseName(parts[3]), FileTransfer.number(parts[4])) : null;
+            case FileTransfer.END:
+                return parts.length == 2 ? end(FileTransfer.number(parts[1])) : null;
+            default:
+                return null;
+        }
+    }
+
+    private String accepted(long ref, long id, long credit) {
+        Outgoing outgoing = offered.remove(ref);
+        if (outgoing == null) return null;
+        outgoing.id = id;
+        sending.put(id, outgoing);
+        outgoing.grant(credit);
+        Thread uploader = new Thread(() -> upload(outgoing), "file-upload-" + id);
+        uploader.setDaemon(true);
+        uploader.start();
+        return "[File] Uploading " + outgoing.name + " (" + FileTransfer.describeSize(outgoing.size) + ")...";
+    }
+
+    // Runs on the transfer's own thread; a failure here means the connection is gone,
+    // which the reading thread notices and reports
+    private void upload(Outgoing outgoing) {
+        try {
+            long position = 0;
+            while (position < outgoing.size) {
+                int count = outgoing.awaitCredit(position);
+                if (count < 0) return;
+                connection.sendFileChunk(outgoing.id, outgoing.file, position, count);
+                position += count;
+            }
+        } catch (IOException ignored) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            sending.remove(outgoing.id);
+            outgoing.close();
+        }
+    }
+
+    private String begin(long id, String from, String name, long size) {
+        String description = name + " (" + FileTransfer.describeSize(size) + ")";
+        try {
+            Files.createDirectories(DOWNLOAD_DIR);
+            Path path = DOWNLOAD_DIR.resolve(name);
+            int dot = name.lastIndexOf('.');
+            String stem = dot > 0 ? name.substring(0, dot) : name;
+            String extension = dot > 0 ? name.substring(dot) : "";
+            for (int n = 1; ; n++) {
+                try {
+                    FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+                    receiving.put(id, new Incoming(from, name, size, path, file));
+                    break;
+                } catch (FileAlreadyExistsException e) {
+                    path = DOWNLOAD_DIR.resolve(stem + " (" + n + ")" + extension);
+                }
+            }
+        } catch (IOException | InvalidPathException e) {
+            return "[File] " + from + " is sending you " + description + ", but it cannot be saved: " + e.getMessage();
+        }
+        return "[File] " + from + " is sending you " + description + "...";
+    }
+
+    /** FILE frame data, moved from the socket to the download's file. */
+    void receive(long id, int count, DataInputStream in) throws IOException {
+        Incoming incoming = receiving.get(id);
+        if (incoming == null) {
+            // A download that could not be saved
+            in.skipNBytes(count);
+            return;
+        }
+        if (incoming.received + count > incoming.size) throw new ProtocolException("more data than announced for " + incoming.name);
+        ReadableByteChannel source = Channels.newChannel(in);
+        long done = 0;
+        while (done < count) {
+            long n = incoming.file.transferFrom(source, incoming.received + done, count - done);
+            if (n <= 0) throw new ProtocolException("file data cut short");
+            done += n;
+        }
+        incoming.received += count;
+    }
+
+    private String end(long id) {
+        Incoming incoming = receiving.remove(id);
+        if (incoming == null) return null;
+        try {
+            incoming.file.close();
+        } catch (IOException e) {
+            incoming.delete();
+            return "[File] Could not save " + incoming.name + ": " + e.getMessage();
+        }
+        if (incoming.received != incoming.size) {
+            incoming.delete();
+            return "[File] " + incoming.name + " from " + incoming.from + " arrived incomplete and was discarded.";
+        }
+        return "[File] Saved " + incoming.name + " from " + incoming.from + " to " + incoming.path + ".";
+    }
+
+    /** Whether {@code file} is still being sent as transfer {@code id}. */
+    boolean isSending(long id, FileChannel file) {
+        Outgoing outgoing = sending.get(id);
+        return outgoing != null && outgoing.file == file;
+    }
+
+    /**
+     * Drops every transfer when the connection goes; a resumed session does not carry them
+     * over. Partly received files are deleted.
+     */
+    void abandon() {
+        abandon(offered);
+        abandon(sending);
+        for (Incoming incoming : receiving.values()) {
+            incoming.delete();
+        }
+        receiving.clear();
+    }
+
+    private static void abandon(Map<Long, Outgoing> transfers) {
+        for (Outgoing transfer : transfers.values()) {
+            transfer.abandon();
+            transfer.close();
+        }
+        transfers.clear();
+    }
+}
@@ -1,19 +1,81 @@
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
 
 public class ClientHandler extends NetworkEntity implements Runnable {
+    private static final int MAX_HISTORY = 1000;
+    private static final int SEARCH_RESULTS = 20;
+    private static final long RATE_LIMIT_NOTICE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
     private final Socket socket;
-    private final ChatServer server;
+    protected final ChatServer server;
+    protected final OutboundQueue<Frame> outbound;
     private String username;
+    private String account;
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    private volatile String activeRoom;
+    protected volatile int protocolVersion = WireProtocol.VERSION_1;
+    private final WriteStats writeStats = new WriteStats();
+    private final RateLimiter rateLimiter;
+    // Reader thread only
+    private long pauseNanos;
+    // Reused for every chat line; only touched by whichever thread reads this client
+    private final StringBuilder lineBuilder = new StringBuilder(128);
+    private long lastRateLimitNotice = System.nanoTime() - RATE_LIMIT_NOTICE_NANOS;
+    // Written by the reading thread, checked on the server's timing wheel
+    private volatile long lastReadNanos = System.nanoTime();
+    private volatile long lastActiveNanos = lastReadNanos;
+    private volatile HashedWheelTimer.Timeout heartbeat;
+    private volatile AdmissionControl.Permit permit;
+    // Last sequence number a resuming client saw; 0 for a fresh login
+    private long resumeAfter;
+    // Files this client is sending, by transfer id; reading thread only
+    private final Map<Long, FileTransfers.Upload> uploads = new HashMap<>();
+    // Files on their way to this client, in turn; only the writer takes them
+    protected final Deque<FileTransfers.Download> downloads = new ConcurrentLinkedDeque<>();
 
     public ClientHandler(Socket socket, ChatServer server) {
         this.socket = socket;
         this.server = server;
+        this.outbound = newOutboundQueue(server);
+        this.rateLimiter = server.newRateLimiter();
         initializeStreams();
     }
 
+    // Used by engines that drive the connection themselves instead of through socket streams
+    protected ClientHandler(ChatServer server) {
+        this.socket = null;
+        this.server = server;
+        this.outbound = newOutboundQueue(server);
+        this.rateLimiter = server.newRateLimiter();
+    }
+
+    private static OutboundQueue<Frame> newOutboundQueue(ChatServer server) {
+        ServerConfig config = server.getConfig();
+        // Only chat may be shed; joins, leaves, notices and control frames must all arrive
+        return new OutboundQueue<>(config.getOutboundCapacity(), config.getOverflowPolicy(),
+                frame -> frame.getType() == WireProtocol.CHAT);
+    }
+
     private void initializeStreams() {
         try {
             this.input = new DataInputStream(socket.getInputStream());
@@ -27,31 +89,761 @@ public class ClientHandler extends NetworkEntity implements Runnable {
     @Override
     public void run() {
         try {
-            username = input.readUTF();
-            server.log(username + " joined from " + socket.getRemoteSocketAddress());
-            server.broadcast("[" + getCurrentTime() + "] " + username + " joined the chat.", this);
-            sendMessage("[Server] Welcome, " + username + "! Type /exit to leave.");
+            // Small frames only until the client has logged in
+            String first = WireProtocol.readUtf(input, WireProtocol.MAX_HANDSHAKE_FRAME_BYTES);
+            if (first.equals(WireProtocol.HELLO)) {
+                // Nothing is queued for a client that has not joined, so the writer is idle
+                output.writeUTF(WireProtocol.HELLO);
+                output.flush();
+                protocolVersion = WireProtocol.VERSION_2;
+                first = WireProtocol.read(input, null, WireProtocol.MAX_HANDSHAKE_FRAME_BYTES).getText();
+            }
+            String name = authenticate(first);
+            if (name == null) return;
+            onJoin(name);
 
             while (connected) {
-                String msg = input.readUTF();
-                handleMessage(msg);
+                if (protocolVersion == WireProtocol.VERSION_2) {
+                    WireProtocol.Message msg = WireProtocol.read(input, this::receiveFileData);
+                    if (msg != null) handleFrame(msg.getType(), msg.getText());
+                } else {
+                    handleMessage(input.readUTF());
+                }
+                // Not reading is the throttle: the client's sends back up into TCP
+                long pause = takePause();
+                if (pause > 0) TimeUnit.NANOSECONDS.sleep(pause);
             }
         } catch (IOException e) {
             handleError("Connection lost with " + username, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
             disconnect();
         }
     }
 
+    /**
+     * Drains the outbound queue onto the socket. Runs on its own thread so a client
+     * with a full TCP window only ever stalls itself, never the broadcasting thread.
+     * Whatever is queued is gathered into one buffered write, flushed when the queue is
+     * empty (after the linger window, if one is set) or the batch is full.
+     *
+     * Files go out only when there is no chat to send, one chunk at a time and taking
+     * turns, so chat is never held up by more than a chunk however large the file.
+     */
+    public void writeLoop() {
+        ServerConfig config = server.getConfig();
+        long lingerNanos = TimeUnit.MICROSECONDS.toNanos(config.getLingerMicros());
+        int batchBytes = config.getBatchBytes();
+        BufferedOutputStream out = new BufferedOutputStream(output, batchBytes);
+        WritableByteChannel fileTarget = Channels.newChannel(out);
+        try {
+            while (true) {
+                Frame frame = downloads.isEmpty() ? outbound.take() : outbound.poll();
+                if (frame != null) {
+                    writeBatch(out, frame, lingerNanos, batchBytes);
+                } else if (outbound.isClosed()) {
+                    break;
+                } else {
+                    writeFileChunk(out, fileTarget);
+                }
+            }
+        } catch (IOException e) {
+            if (connected) {
+                handleError("Error sending message", e);
+                abort();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeBatch(BufferedOutputStream out, Frame frame, long lingerNanos, int batchBytes)
+            throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + lingerNanos;
+        int batch = 0;
+        int pending = 0;
+        while (frame != null) {
+            byte[] bytes = encode(frame);
+            if (bytes != null) {
+                out.write(bytes);
+                batch++;
+                pending += bytes.length;
+            }
+            if (pending >= batchBytes) {
+                out.flush();
+                recordWrite(batch, pending);
+                batch = 0;
+                pending = 0;
+            }
+            frame = outbound.poll();
+            if (frame == null && lingerNanos > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining > 0) frame = outbound.poll(remaining, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (batch > 0) {
+            out.flush();
+            recordWrite(batch, pending);
+        }
+    }
+
+    private void writeFileChunk(BufferedOutputStream out, WritableByteChannel target) throws IOException {
+        FileTransfers.Download download = downloads.poll();
+        if (download == null) return;
+        int count = download.nextChunk();
+        try {
+            out.write(WireProtocol.fileHeader(download.getId(), count));
+            for (long sent = 0; sent < count; ) {
+                sent += download.transferTo(target, count - sent);
+            }
+            out.flush();
+        } catch (IOException e) {
+            download.release();
+            throw e;
+        }
+        recordWrite(0, WireProtocol.FILE_HEADER_LENGTH + count);
+        chunkSent(download);
+    }
+
+    /** Puts a download back in line after one of its chunks has been sent, or ends it. */
+    protected void chunkSent(FileTransfers.Download download) {
+        if (download.isDone()) {
+            download.release();
+            sendMessage(WireProtocol.CONTROL, FileTransfer.end(download.getId()));
+        } else {
+            downloads.add(download);
+        }
+        if (!connected) releaseDownloads();
+    }
+
+    /** Tells the writer a download has been queued. */
+    protected void fileQueued() {
+        outbound.wakeUp();
+    }
+
+    // Safe from any thread, any number of times: each download is taken from the queue once
+    protected void releaseDownloads() {
+        FileTransfers.Download download;
+        while ((download = downloads.poll()) != null) {
+            download.release();
+        }
+    }
+
+    // Null if the frame cannot be expressed in this client's protocol version
+    protected byte[] encode(Frame frame) {
+        try {
+            return frame.encoded(protocolVersion);
+        } catch (IOException e) {
+            server.log("Not sending message to " + username + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void sendMessage(String message) {
+        sendFrame(Frame.of(message));
+    }
+
+    public void sendMessage(byte type, String message) {
+        sendFrame(Frame.of(type, message));
+    }
+
+    public void sendFrame(Frame frame) {
+        if (!connected) return;
+        if (outbound.offer(frame) == OutboundQueue.Result.OVERFLOW) {
+            server.log(username + " cannot keep up (outbound queue full), disconnecting");
+            abort();
+        }
+    }
+
+    /**
+     * Tears down the connection from outside the reading thread; the reader notices the
+     * closed socket and runs the normal {@link #disconnect()} path.
+     */
+    protected void abort() {
+        connected = false;
+        outbound.close();
+        try {
+            if (socket != null) socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    /** Arms the liveness check; called once, when the connection is accepted. */
+    void startHeartbeat() {
+        ServerConfig config = server.getConfig();
+        int interval = config.getHeartbeatIntervalSeconds();
+        int timeout = config.getHeartbeatTimeoutSeconds();
+        scheduleHeartbeat(interval > 0 ? Math.min(interval, timeout) : timeout, TimeUnit.SECONDS);
+    }
+
+    private void scheduleHeartbeat(long delay, TimeUnit unit) {
+        heartbeat = server.getWheel().schedule(this::checkLiveness, delay, unit);
+    }
+
+    /**
+     * Runs on the timing wheel rather than a timer per connection. Pings a version 2
+     * client that has gone quiet and evicts, through the usual disconnect path, one that
+     * has sent nothing at all for the heartbeat timeout or nothing but pongs for the idle
+     * timeout. Reads never touch the wheel; the check just reschedules itself for the
+     * next deadline that could apply.
+     */
+    private void checkLiveness() {
+        if (!connected) return;
+        ServerConfig config = server.getConfig();
+        long now = System.nanoTime();
+        long sinceRead = now - lastReadNanos;
+        long sinceActive = now - lastActiveNanos;
+        long interval = TimeUnit.SECONDS.toNanos(config.getHeartbeatIntervalSeconds());
+        long timeout = TimeUnit.SECONDS.toNanos(config.getHeartbeatTimeoutSeconds());
+        long idle = TimeUnit.MINUTES.toNanos(config.getIdleTimeoutMinutes());
+        boolean joined = username != null;
+        boolean pingable = joined && interval > 0 && protocolVersion == WireProtocol.VERSION_2;
+
+        String reason = null;
+        if ((pingable || !joined) && sinceRead >= timeout) {
+            reason = "nothing received for " + TimeUnit.NANOSECONDS.toSeconds(sinceRead) + "s";
+        } else if (joined && idle > 0 && sinceActive >= idle) {
+            reason = "idle for " + TimeUnit.NANOSECONDS.toMinutes(sinceActive) + " minutes";
+        }
+        if (reason != null) {
+            server.log("Dropping " + (joined ? username : getRemoteAddress()) + ": " + reason);
+            server.recordTimedOut();
+            abort();
+            return;
+        }
+
+        long next = Long.MAX_VALUE;
+        if (pingable || !joined) next = timeout - sinceRead;
+        if (pingable) {
+            if (sinceRead >= interval) sendMessage(WireProtocol.CONTROL, WireProtocol.PING);
+            next = Math.min(next, sinceRead >= interval ? interval : interval - sinceRead);
+        }
+        if (joined && idle > 0) next = Math.min(next, idle - sinceActive);
+        if (next != Long.MAX_VALUE) scheduleHeartbeat(next, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Checks the client's first frame (see {@link AuthHandshake}) against the credential
+     * store or a session token. Returns the username to join with, or null once the
+     * client has been sent AUTH_FAIL.
+     */
+    protected String authenticate(String handshake) throws IOException {
+        lastReadNanos = System.nanoTime();
+        String[] parts = AuthHandshake.parse(handshake);
+        String verified = null;
+        String name = null;
+        String reason = "Authentication required";
+        if (parts.length == 4 && parts[0].equals(AuthHandshake.LOGIN)) {
+            reason = "Invalid credentials";
+            if (LoginSystem.login(parts[1], parts[2])) verified = parts[1];
+            name = parts[3];
+        } else if (parts.length == 4 && parts[0].equals(AuthHandshake.REGISTER)) {
+            reason = "Registration failed";
+            if (LoginSystem.register(parts[1], parts[2])) verified = parts[1];
+            name = parts[3];
+        } else if ((parts.length == 3 || parts.length == 4) && parts[0].equals(AuthHandshake.RESUME)) {
+            reason = "Invalid or expired session";
+            verified = server.getSessionTokens().verify(parts[1]);
+            name = parts[2];
+            if (parts.length == 4) resumeAfter = parseSequence(parts[3]);
+        }
+        if (verified == null) {
+            server.log("Authentication failed from " + getRemoteAddress() + ": " + reason);
+            rejectHandshake(AuthHandshake.fail(reason));
+            return null;
+        }
+        account = verified;
+        sendMessage(WireProtocol.CONTROL, AuthHandshake.ok(server.getSessionTokens().issue(verified)));
+        // /msg addresses users by a single word
+        name = name.trim().replaceAll("\\s+", "_");
+        return name.isEmpty() ? "Anonymous" : name;
+    }
+
+    // Nothing else is queued for a client that has not joined, so the writer is idle
+    protected void rejectHandshake(String reply) throws IOException {
+        output.write(Frame.of(WireProtocol.CONTROL, reply).encoded(protocolVersion));
+        output.flush();
+    }
+
+    protected void onJoin(String requested) {
+        this.username = server.addClient(this, requested);
+        server.log(username + " joined from " + getRemoteAddress());
+        rooms.add(RoomDirectory.DEFAULT_ROOM);
+        server.getRooms().join(RoomDirectory.DEFAULT_ROOM, this);
+        activeRoom = RoomDirectory.DEFAULT_ROOM;
+        server.broadcastToRoom(RoomDirectory.DEFAULT_ROOM, WireProtocol.JOIN,
+                "[" + getCurrentTime() + "] " + username + " joined the chat.", this);
+        sendMessage("[Server] Welcome, " + username + "! Type /exit to leave, /rooms to list chat rooms.");
+        if (resumeAfter > 0) resume(resumeAfter);
+    }
+
+    private static long parseSequence(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Puts a reconnecting client back in the rooms it had and sends the room messages it
+     * missed from the server's {@link Sequencer}. The rooms are joined before the ring
+     * is read, so nothing is lost in between; a message in flight at that moment may
+     * arrive twice.
+     */
+    private void resume(long after) {
+        ChatServer.DetachedSession session = server.reattach(account);
+        if (session != null) {
+            for (String room : session.rooms) {
+                if (rooms.add(room)) {
+                    server.getRooms().join(room, this);
+                    server.broadcastToRoom(room, WireProtocol.JOIN, "[" + getCurrentTime() + "] " + username + " joined #" + room + ".", this);
+                }
+            }
+            if (session.activeRoom != null && rooms.contains(session.activeRoom)) activeRoom = session.activeRoom;
+        }
+        List<Frame> missed = server.getSequencer().since(after, rooms, username);
+        if (missed == null) {
+            sendMessage("[Server] Messages from while you were away are no longer buffered; use /history to catch up.");
+            return;
+        }
+        for (Frame frame : missed) {
+            sendFrame(frame);
+        }
+        sendMessage("[Server] Resumed with " + missed.size() + " missed messages"
+                + (activeRoom != null ? ", talking in #" + activeRoom + "." : "."));
+    }
+
     @Override
     public void handleMessage(String message) throws IOException {
-        if (message.equalsIgnoreCase("/exit")) {
+        handleFrame(WireProtocol.typeOf(message), message);
+    }
+
+    protected void handleFrame(byte type, String message) throws IOException {
+        long now = System.nanoTime();
+        lastReadNanos = now;
+        if (type == WireProtocol.CONTROL && message.equals(WireProtocol.PONG)) return;
+        lastActiveNanos = now;
+        if (type == WireProtocol.CONTROL && message.equalsIgnoreCase("/exit")) {
             connected = false;
             return;
         }
-        String formatted = "[" + getCurrentTime() + "] " + username + ": " + message;
-        server.log(formatted);
-        server.broadcast(formatted, this);
+        int size = ModifiedUtf8.encodedLength(message);
+        server.getMetrics().messageReceived(size);
+        if (!admit(size)) return;
+        if (type == WireProtocol.CONTROL) {
+            if (FileTransfer.isTransferFrame(message)) {
+                handleTransfer(message);
+            } else {
+                handleCommand(message);
+            }
+            return;
+        }
+        String room = activeRoom;
+        if (room == null) {
+            sendMessage("[Server] You are not in any room. Use /join <room> to start chatting.");
+            return;
+        }
+        // One frame, and one UTF-8 encoding of it, serves the broadcast, the log and the history
+        Frame frame = server.broadcastToRoom(room, WireProtocol.CHAT, formatChatLine(room, message), this);
+        server.logMessage(frame);
+        MessageStore store = server.getMessageStore();
+        if (store != null) {
+            // Already delivered, so a failure to keep it costs only its history entry
+            try {
+                store.append(room, frame.utf8());
+                SearchIndex index = server.getSearchIndex();
+                if (index != null) index.messageAppended();
+            } catch (IOException e) {
+                server.getMetrics().historyWriteFailed();
+                ServerLogger.log("[Warning] Message from " + username + " in #" + room + " not kept in history: " + e.getMessage());
+            }
+        }
+        // Delivery is left to the sequencer, so the charge is for the room as it is now
+        int recipients = server.getRooms().members(room).length - 1;
+        pause(rateLimiter.chargeFanout(Math.max(0, recipients)));
+    }
+
+    String formatChatLine(String room, String message) {
+        StringBuilder line = lineBuilder;
+        line.setLength(0);
+        line.append('[').append(getCurrentTime()).append("] ");
+        if (!RoomDirectory.DEFAULT_ROOM.equals(room)) line.append('#').append(room).append(' ');
+        return line.append(username).append(": ").append(message).toString();
+    }
+
+    /** Applies the rate limit policy; false if the message must not be handled. */
+    private boolean admit(int size) {
+        switch (rateLimiter.getPolicy()) {
+            case THROTTLE:
+                long wait = rateLimiter.admit(size);
+                if (wait > 0) {
+                    rateLimited("throttling", null);
+                    pause(wait);
+                }
+                return true;
+            case WARN:
+                if (rateLimiter.tryAdmit(size)) return true;
+                rateLimited("dropping messages", "[Server] You are sending too fast; messages are being dropped.");
+                return false;
+            default:
+                if (rateLimiter.tryAdmit(size)) return true;
+                rateLimited("disconnecting", null);
+                sendMessage("[Server] Disconnected for sending too fast.");
+                connected = false;
+                return false;
+        }
+    }
+
+    // Logs (and tells the client) at most once a second however hard it floods
+    private void rateLimited(String action, String notice) {
+        server.recordRateLimited();
+        long now = System.nanoTime();
+        if (now - lastRateLimitNotice < RATE_LIMIT_NOTICE_NANOS) return;
+        lastRateLimitNotice = now;
+        server.log("Rate limit exceeded by " + username + ", " + action
+                + " (" + rateLimiter.getLimitedCount() + " messages limited so far)");
+        if (notice != null) sendMessage(notice);
+    }
+
+    private void pause(long nanos) {
+        pauseNanos = Math.max(pauseNanos, nanos);
+    }
+
+    /** How long the reader should stop reading this connection before the next message. */
+    protected long takePause() {
+        long pause = pauseNanos;
+        pauseNanos = 0;
+        return pause;
+    }
+
+    private void handleCommand(String message) {
+        String[] parts = message.trim().split("\\s+", 2);
+        String argument = parts.length > 1 ? parts[1] : "";
+        switch (parts[0].toLowerCase()) {
+            case "/join":
+                joinRoom(argument);
+                break;
+            case "/leave":
+                leaveRoom(argument.isEmpty() ? activeRoom : argument);
+                break;
+            case "/rooms":
+                listRooms();
+                break;
+            case "/history":
+                sendHistory(argument);
+                break;
+            case "/replay":
+                replaySince(argument);
+                break;
+            case "/search":
+                search(argument);
+                break;
+            case "/msg":
+                sendPrivate(argument);
+                break;
+            case "/send":
+                // A client that can send files turns /send into an offer before it gets here
+                sendMessage("[Server] /send needs a client that supports file transfer.");
+                break;
+            case "/stats":
+                sendStats();
+                break;
+            default:
+                sendMessage("[Server] Unknown command " + parts[0]
+                        + ". Commands: /join <room>, /leave [room], /rooms, /msg <user> <text>, /send <user|#room> <file>, /history [n], /replay <id>, /search <words>, /exit");
+        }
+    }
+
+    // Queued for the recipient alone; not logged or kept in the room history
+    private void sendPrivate(String argument) {
+        String[] parts = argument.split("\\s+", 2);
+        if (parts.length < 2 || parts[0].isEmpty()) {
+            sendMessage("[Server] Usage: /msg <user> <text>");
+            return;
+        }
+        ClientHandler target = server.findClient(parts[0]);
+        if (target == null || !target.isConnected()) {
+            sendMessage("[Server] " + parts[0] + " is not online.");
+            return;
+        }
+        Frame frame = Frame.of(WireProtocol.CHAT, "[" + getCurrentTime() + "] " + username + " -> " + target.getUsername() + ": " + parts[1]);
+        target.sendFrame(frame);
+        if (target != this) sendFrame(frame);
+        pause(rateLimiter.chargeFanout(1));
+    }
+
+    private void handleTransfer(String message) {
+        String[] parts = FileTransfer.parse(message);
+        if (parts[0].equals(FileTransfer.OFFER) && parts.length == 5) {
+            offerFile(FileTransfer.number(parts[1]), parts[2], FileTransfer.baseName(parts[3]), FileTransfer.number(parts[4]));
+        } else {
+            sendMessage("[Server] Unexpected file transfer message " + parts[0] + ".");
+        }
+    }
+
+    /**
+     * Accepts or rejects an offer to send a file to a user or to one of this client's
+     * rooms. An accepted file is spooled to disk, and only sent on once it is complete.
+     */
+    private void offerFile(long ref, String target, String name, long size) {
+        FileTransfers transfers = server.getFileTransfers();
+        String recipient = null;
+        String reason = null;
+        if (!transfers.isEnabled()) {
+            reason = "File transfer is disabled on this server.";
+        } else if (ref < 0 || size < 0) {
+            reason = "Malformed offer.";
+        } else if (size > transfers.getMaxBytes()) {
+            reason = "Files are limited to " + FileTransfer.describeSize(transfers.getMaxBytes()) + ".";
+        } else if (uploads.size() >= FileTransfers.MAX_UPLOADS_PER_CLIENT) {
+            reason = "Too many files on their way already; wait for one to finish.";
+        } else if ((recipient = fileRecipient(target)) == null) {
+            reason = target + " is neither online nor a room you are in.";
+        }
+        if (reason != null) {
+            sendMessage(WireProtocol.CONTROL, FileTransfer.reject(ref, reason));
+            return;
+        }
+        FileTransfers.Upload upload;
+        try {
+            upload = transfers.open(recipient, name, size);
+        } catch (IOException e) {
+            handleError("Cannot store upload from " + username, e);
+            sendMessage(WireProtocol.CONTROL, FileTransfer.reject(ref, "The server cannot store files right now."));
+            return;
+        }
+        uploads.put(upload.getId(), upload);
+        sendMessage(WireProtocol.CONTROL, FileTransfer.accept(ref, upload.getId(), upload.getGranted()));
+        if (upload.isComplete()) completeUpload(upload);
+    }
+
+    // "#room" for a room this client is in, or the name of an online user; null if neither
+    private String fileRecipient(String target) {
+        if (!target.startsWith("#")) {
+            ClientHandler user = server.findClient(target);
+            if (user != null) return user.getUsername();
+        }
+        String room = RoomDirectory.normalize(target.startsWith("#") ? target.substring(1) : target);
+        return room != null && rooms.contains(room) ? "#" + room : null;
+    }
+
+    private void receiveFileData(long id, int count, DataInputStream in) throws IOException {
+        FileTransfers.Upload upload = fileDataArrived(id);
+        upload.receive(in, count);
+        fileDataWritten(upload);
+    }
+
+    /** The NIO engine's counterpart, for data already in its read buffer. */
+    protected void receiveFileData(long id, ByteBuffer data) throws IOException {
+        FileTransfers.Upload upload = fileDataArrived(id);
+        upload.receive(data);
+        fileDataWritten(upload);
+    }
+
+    private FileTransfers.Upload fileDataArrived(long id) throws ProtocolException {
+        long now = System.nanoTime();
+        lastReadNanos = now;
+        lastActiveNanos = now;
+        FileTransfers.Upload upload = uploads.get(id);
+        if (upload == null) throw new ProtocolException("file data for unknown transfer " + id);
+        return upload;
+    }
+
+    private void fileDataWritten(FileTransfers.Upload upload) {
+        if (upload.isComplete()) {
+            completeUpload(upload);
+            return;
+        }
+        long credit = upload.grant();
+        if (credit > 0) sendMessage(WireProtocol.CONTROL, FileTransfer.credit(upload.getId(), credit));
+    }
+
+    private void completeUpload(FileTransfers.Upload upload) {
+        uploads.remove(upload.getId());
+        String target = upload.getTarget();
+        List<ClientHandler> recipients = new ArrayList<>();
+        if (target.startsWith("#")) {
+            for (ClientHandler member : server.getRooms().members(target.substring(1))) {
+                if (member != this) recipients.add(member);
+            }
+        } else {
+            ClientHandler user = server.findClient(target);
+            if (user != null) recipients.add(user);
+        }
+        String description = upload.getName() + " (" + FileTransfer.describeSize(upload.getSize()) + ")";
+        Iterator<ClientHandler> it = recipients.iterator();
+        while (it.hasNext()) {
+            ClientHandler recipient = it.next();
+            if (!recipient.isConnected()) {
+                it.remove();
+            } else if (recipient.protocolVersion != WireProtocol.VERSION_2) {
+                recipient.sendMessage("[Server] " + username + " tried to send you " + description
+                        + ", but your client cannot receive files.");
+                it.remove();
+            }
+        }
+        FileTransfers.Spool spool;
+        try {
+            spool = upload.finish(username, recipients.size());
+        } catch (IOException e) {
+            handleError("Cannot deliver upload from " + username, e);
+            upload.discard();
+            sendMessage("[Server] Could not deliver " + upload.getName() + ".");
+            return;
+        }
+        for (ClientHandler recipient : recipients) {
+            recipient.sendFile(spool);
+        }
+        server.log(username + " sent " + description + " to " + target + ", " + recipients.size() + " recipients");
+        sendMessage(recipients.isEmpty()
+                ? "[Server] Nobody in " + target + " can receive " + upload.getName() + "."
+                : "[Server] Sending " + description + " to " + target + ".");
+    }
+
+    /** Queues a finished upload for this client, behind any chat already queued. */
+    void sendFile(FileTransfers.Spool spool) {
+        sendMessage(WireProtocol.CONTROL, FileTransfer.begin(spool.getId(), spool.getFrom(), spool.getName(), spool.getSize()));
+        downloads.add(spool.newDownload());
+        if (!connected) releaseDownloads();
+        fileQueued();
+    }
+
+    private void joinRoom(String name) {
+        String room = RoomDirectory.normalize(name);
+        if (room == null) {
+            sendMessage("[Server] Room names are 1-32 letters, digits, '-' or '_'.");
+            return;
+        }
+        if (rooms.add(room)) {
+            server.getRooms().join(room, this);
+            server.broadcastToRoom(room, WireProtocol.JOIN, "[" + getCurrentTime() + "] " + username + " joined #" + room + ".", this);
+        }
+        activeRoom = room;
+        sendMessage("[Server] Now talking in #" + room + ".");
+    }
+
+    private void leaveRoom(String name) {
+        String room = name == null ? null : RoomDirectory.normalize(name);
+        if (room == null || !rooms.remove(room)) {
+            sendMessage("[Server] You are not in " + (room == null ? "that room" : "#" + room) + ".");
+            return;
+        }
+        server.getRooms().leave(room, this);
+        server.broadcastToRoom(room, WireProtocol.LEAVE, "[" + getCurrentTime() + "] " + username + " left #" + room + ".", this);
+        if (room.equals(activeRoom)) {
+            Iterator<String> remaining = rooms.iterator();
+            activeRoom = remaining.hasNext() ? remaining.next() : null;
+        }
+        sendMessage("[Server] Left #" + room + "."
+                + (activeRoom != null ? " Now talking in #" + activeRoom + "." : " Use /join <room> to keep chatting."));
+    }
+
+    private void listRooms() {
+        StringBuilder sb = new StringBuilder("[Server] Rooms:");
+        String separator = " ";
+        for (Map.Entry<String, Integer> room : server.getRooms().list().entrySet()) {
+            sb.append(separator).append('#').append(room.getKey()).append(" (").append(room.getValue());
+            if (rooms.contains(room.getKey())) sb.append(", joined");
+            sb.append(')');
+            separator = ", ";
+        }
+        sendMessage(sb.toString());
+    }
+
+    private void sendStats() {
+        if (!server.isAdmin(account)) {
+            sendMessage("[Server] /stats is only available to administrators.");
+            return;
+        }
+        for (String line : server.getMetrics().report()) {
+            sendMessage("[Server] " + line);
+        }
+    }
+
+    private void sendHistory(String argument) {
+        MessageStore store = server.getMessageStore();
+        String room = activeRoom;
+        if (store == null || room == null) {
+            sendMessage("[Server] History is not available.");
+            return;
+        }
+        int count = parseLimit(argument, 20);
+        if (count < 0) return;
+        // A quiet room may mean walking back through all of history, so it stays off the event loop
+        server.getWorkers().execute(() -> {
+            List<MessageStore.StoredMessage> messages = store.lastInRoom(room, count);
+            sendMessage("[Server] Last " + messages.size() + " messages in #" + room + ":");
+            sendStored(messages);
+        });
+    }
+
+    private void replaySince(String argument) {
+        MessageStore store = server.getMessageStore();
+        if (store == null) {
+            sendMessage("[Server] History is not available.");
+            return;
+        }
+        long afterId;
+        try {
+            afterId = Long.parseLong(argument.trim());
+        } catch (NumberFormatException e) {
+            sendMessage("[Server] Usage: /replay <message id>");
+            return;
+        }
+        Set<String> joined = new HashSet<>(rooms);
+        server.getWorkers().execute(() -> {
+            List<MessageStore.StoredMessage> messages = store.since(afterId, joined, MAX_HISTORY);
+            sendMessage("[Server] " + messages.size() + " messages since #" + afterId
+                    + (messages.size() == MAX_HISTORY ? " (limit reached, replay again from the last id)" : "") + ":");
+            sendStored(messages);
+        });
+    }
+
+    // Runs on the worker pool so a broad query never holds up an NIO event loop
+    private void search(String argument) {
+        SearchIndex index = server.getSearchIndex();
+        if (index == null) {
+            sendMessage("[Server] Search is not available.");
+            return;
+        }
+        SearchIndex.Query query;
+        try {
+            query = SearchIndex.Query.parse(argument);
+        } catch (IllegalArgumentException e) {
+            sendMessage("[Server] " + e.getMessage() + " Usage: /search <words> [from:<user>] [in:<room>]"
+                    + " [after:<yyyy-MM-dd|30m|2h|7d>] [before:<...>]");
+            return;
+        }
+        // Like /replay, only the rooms the client is in are searched
+        Set<String> joined = new HashSet<>(rooms);
+        server.getWorkers().execute(() -> {
+            long start = System.nanoTime();
+            List<MessageStore.StoredMessage> results = index.search(query, joined, SEARCH_RESULTS);
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            sendMessage(String.format("[Server] %d matches in %.1f ms%s:", results.size(), micros / 1000.0,
+                    results.size() == SEARCH_RESULTS ? " (newest " + SEARCH_RESULTS + " shown)" : ""));
+            Collections.reverse(results);
+            sendStored(results);
+        });
+    }
+
+    private void sendStored(List<MessageStore.StoredMessage> messages) {
+        for (MessageStore.StoredMessage stored : messages) {
+            sendMessage(WireProtocol.CHAT, "(" + stored.getId() + ") " + stored.getText());
+        }
+    }
+
+    // Returns -1 after telling the client the argument is invalid
+    private int parseLimit(String argument, int defaultValue) {
+        if (argument.isEmpty()) return defaultValue;
+        try {
+            int value = Integer.parseInt(argument.trim());
+            if (value > 0) return Math.min(value, MAX_HISTORY);
+        } catch (NumberFormatException ignored) {}
+        sendMessage("[Server] Expected a number between 1 and " + MAX_HISTORY + ".");
+        return -1;
     }
 
     @Override
@@ -60,18 +852,47 @@ public class ClientHandler extends NetworkEntity implements Runnable {
             // already disconnected flag maybe set; still proceed with removal
         }
         connected = false;
-        server.removeClient(this);
-        server.broadcast("[" + getCurrentTime() + "] " + username + " left the chat.", this);
+        HashedWheelTimer.Timeout pending = heartbeat;
+        if (pending != null) pending.cancel();
+        for (FileTransfers.Upload upload : uploads.values()) {
+            upload.discard();
+        }
+        uploads.clear();
+        if (username != null) {
+            // Nobody is told about a connection whose name has been taken over by a new one
+            boolean replaced = server.findClient(username) != this;
+            server.removeClient(this);
+            String left = "[" + getCurrentTime() + "] " + username + " left the chat.";
+            if (!replaced) detachSession();
+            for (String room : rooms) {
+                server.getRooms().leave(room, this);
+                if (!replaced) server.broadcastToRoom(room, WireProtocol.LEAVE, left, this);
+            }
+            rooms.clear();
+        }
+        if (permit != null) permit.release();
         closeResources();
     }
 
+    // The rooms this connection was in, kept for a resume on the same account
+    void detachSession() {
+        server.detach(account, new HashSet<>(rooms), activeRoom);
+    }
+
+    // Given back by disconnect(), making room for another connection
+    void setPermit(AdmissionControl.Permit permit) {
+        this.permit = permit;
+    }
+
     @Override
     protected void handleError(String message, Exception e) {
         server.log(message + ": " + e.getMessage());
         ExceptionHandler.handle(message, e); // integrated exception handler
     }
 
-    private void closeResources() {
+    protected void closeResources() {
+        outbound.close();
+        releaseDownloads();
         try {
             if (input != null) input.close();
         } catch (IOException ignored) {}
@@ -83,7 +904,37 @@ public class ClientHandler extends NetworkEntity implements Runnable {
         } catch (IOException ignored) {}
     }
 
+    protected SocketAddress getRemoteAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
     public String getUsername() {
         return username;
     }
+
+    /** The authenticated account (email) behind this connection. */
+    public String getAccount() {
+        return account;
+    }
+
+    public int getOutboundDepth() {
+        return outbound.size();
+    }
+
+    public long getDroppedMessages() {
+        return outbound.getDroppedCount();
+    }
+
+    public long getRateLimitedMessages() {
+        return rateLimiter.getLimitedCount();
+    }
+
+    protected void recordWrite(int batchSize, long bytes) {
+        if (batchSize > 0) writeStats.record(batchSize);
+        server.getMetrics().batchWritten(batchSize, bytes);
+    }
+
+    public WriteStats getWriteStats() {
+        return writeStats;
+    }
 }
@@ -0,0 +1,99 @@
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Set of connected clients with a lazily rebuilt array snapshot. Joins and leaves are
+ * O(1) and only invalidate the snapshot; the next reader rebuilds it once and later
+ * readers iterate the cached array without locking or copying. A burst of n joins
+ * (a reconnect storm) then costs O(n) plus one copy per message sent meanwhile,
+ * rather than the O(n^2) of copying the array on every change.
+ *
+ * Alongside it, a concurrent index from username (case-insensitive) to client lets a
+ * single recipient be found without scanning the array.
+ */
+public class ClientRegistry {
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Insertion order, so delivery order matches join order as before
+    private final Set<ClientHandler> members = new LinkedHashSet<>();
+    private volatile int size;
+    // Null once a join or leave has made it stale
+    private volatile ClientHandler[] snapshot = EMPTY;
+    private final ConcurrentHashMap<String, ClientHandler> byName = new ConcurrentHashMap<>();
+
+    public void add(ClientHandler client) {
+        writeLock.lock();
+        try {
+            if (members.add(client)) changed();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean remove(ClientHandler client) {
+        writeLock.lock();
+        try {
+            if (!members.remove(client)) return false;
+            changed();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Caller holds writeLock
+    private void changed() {
+        size = members.size();
+        snapshot = null;
+    }
+
+    /** Takes {@code name} for the client; returns null on success, else whoever holds it. */
+    public ClientHandler claimName(String name, ClientHandler client) {
+        ClientHandler holder = byName.putIfAbsent(key(name), client);
+        return holder == client ? null : holder;
+    }
+
+    /** Moves {@code name} from {@code holder} to {@code client}; false if the holder changed meanwhile. */
+    public boolean takeOverName(String name, ClientHandler holder, ClientHandler client) {
+        return byName.replace(key(name), holder, client);
+    }
+
+    /** Frees {@code name} unless it has already passed to another client. */
+    public void releaseName(String name, ClientHandler client) {
+        byName.remove(key(name), client);
+    }
+
+    public ClientHandler find(String name) {
+        return byName.get(key(name));
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /** The current members; the returned array must not be modified. */
+    public ClientHandler[] snapshot() {
+        ClientHandler[] current = snapshot;
+        if (current != null) return current;
+        writeLock.lock();
+        try {
+            // Another reader may have rebuilt it while we waited
+            current = snapshot;
+            if (current == null) {
+                current = members.isEmpty() ? EMPTY : members.toArray(EMPTY);
+                snapshot = current;
+            }
+            return current;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+}
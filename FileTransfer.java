@@ -0,0 +1,86 @@
+/**
+ * Control frames of a file transfer, sent as version 2 CONTROL frames alongside the
+ * FILE frames that carry the data (see {@link WireProtocol}). The sender offers a file
+ * <pre>
+ *   FILE_OFFER\n&lt;ref&gt;\n&lt;user or #room&gt;\n&lt;file name&gt;\n&lt;size&gt;
+ * </pre>
+ * and the server answers {@code FILE_ACCEPT\n<ref>\n<id>\n<credit>} or
+ * {@code FILE_REJECT\n<ref>\n<reason>}. The sender may then send FILE frames for that id,
+ * but never more bytes in total than it has been granted; the server grants more with
+ * {@code FILE_CREDIT\n<id>\n<bytes>} as it writes what arrived to disk.
+ *
+ * Once the whole file is in, each recipient gets {@code FILE_BEGIN\n<id>\n<from>\n<name>\n<size>},
+ * the data in FILE frames and {@code FILE_END\n<id>}. A connection that drops takes its
+ * transfers with it, in both directions.
+ */
+public final class FileTransfer {
+    public static final String OFFER = "FILE_OFFER";
+    public static final String ACCEPT = "FILE_ACCEPT";
+    public static final String REJECT = "FILE_REJECT";
+    public static final String CREDIT = "FILE_CREDIT";
+    public static final String BEGIN = "FILE_BEGIN";
+    public static final String END = "FILE_END";
+    private static final String PREFIX = "FILE_";
+    private static final String SEPARATOR = "\n";
+
+    /** Largest FILE frame payload, transfer id aside; small enough that chat never waits long behind one. */
+    public static final int CHUNK_BYTES = 64 * 1024;
+
+    private FileTransfer() {}
+
+    public static String offer(long ref, String target, String name, long size) {
+        return String.join(SEPARATOR, OFFER, Long.toString(ref), target, name, Long.toString(size));
+    }
+
+    public static String accept(long ref, long id, long credit) {
+        return String.join(SEPARATOR, ACCEPT, Long.toString(ref), Long.toString(id), Long.toString(credit));
+    }
+
+    public static String reject(long ref, String reason) {
+        return String.join(SEPARATOR, REJECT, Long.toString(ref), reason);
+    }
+
+    public static String credit(long id, long bytes) {
+        return String.join(SEPARATOR, CREDIT, Long.toString(id), Long.toString(bytes));
+    }
+
+    public static String begin(long id, String from, String name, long size) {
+        return String.join(SEPARATOR, BEGIN, Long.toString(id), from, name, Long.toString(size));
+    }
+
+    public static String end(long id) {
+        return END + SEPARATOR + id;
+    }
+
+    /** Whether a CONTROL frame belongs to a file transfer. */
+    public static boolean isTransferFrame(String text) {
+        return text.startsWith(PREFIX);
+    }
+
+    public static String[] parse(String frame) {
+        return frame.split(SEPARATOR, -1);
+    }
+
+    /** -1 if the field is not a number. */
+    public static long number(String field) {
+        try {
+            return Long.parseLong(field);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** A file name with any directory part and line breaks removed; "file" if nothing is left. */
+    public static String baseName(String name) {
+        String base = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1)
+                .replaceAll("[\\r\\n]", "").trim();
+        return base.isEmpty() || base.equals(".") || base.equals("..") ? "file" : base;
+    }
+
+    public static String describeSize(long bytes) {
+        if (bytes < 1024) return bytes + " bytes";
+        if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
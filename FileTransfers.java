@@ -0,0 +1,279 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server side of /send (see {@link FileTransfer}). An upload is spooled to a file under
+ * chat.file.dir as its chunks arrive, so at most one chunk of it is ever in memory, and
+ * the sender is granted credit only for what has reached the disk: however fast it
+ * uploads, no more than a window per transfer is in flight.
+ *
+ * A finished upload is shared by all its recipients. Each recipient's writer sends it
+ * with {@link FileChannel#transferTo} a chunk at a time, and only while that connection
+ * has no chat waiting; the spool file is deleted once the last recipient is done.
+ */
+public class FileTransfers {
+    /** Uploads one connection may have in progress at once. */
+    public static final int MAX_UPLOADS_PER_CLIENT = 4;
+    private static final String SPOOL_PREFIX = "upload-";
+    private static final String SPOOL_SUFFIX = ".spool";
+
+    private final Path dir;
+    private final long maxBytes;
+    private final int windowBytes;
+    private final AtomicLong nextId = new AtomicLong();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder filesDelivered = new LongAdder();
+
+    public FileTransfers(ServerConfig config) {
+        this.dir = Paths.get(config.getFileDir());
+        this.maxBytes = config.getFileMaxBytes();
+        this.windowBytes = config.getFileWindowBytes();
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Deletes spool files left behind by a previous run and returns how many there were. */
+    public int deleteLeftovers() {
+        if (!Files.isDirectory(dir)) return 0;
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SPOOL_PREFIX + "*" + SPOOL_SUFFIX)) {
+            for (Path file : files) {
+                if (Files.deleteIfExists(file)) deleted++;
+            }
+        } catch (IOException e) {
+            ExceptionHandler.handle("Cleaning up file transfers", e);
+        }
+        return deleted;
+    }
+
+    /** Opens a spool file for an accepted offer. */
+    public Upload open(String target, String name, long size) throws IOException {
+        Files.createDirectories(dir);
+        Path path = Files.createTempFile(dir, SPOOL_PREFIX, SPOOL_SUFFIX);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        return new Upload(nextId.incrementAndGet(), target, name, size, path, channel);
+    }
+
+    /** Bytes of files received from senders. */
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /** Bytes of files sent to recipients. */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /** Files sent in full to a recipient. */
+    public long getFilesDelivered() {
+        return filesDelivered.sum();
+    }
+
+    /** A file on its way in from the sender; touched only by the sender's reading thread. */
+    public final class Upload {
+        private final long id;
+        private final String target;
+        private final String name;
+        private final long size;
+        private final Path path;
+        private final FileChannel channel;
+        private long received;
+        private long granted;
+
+        private Upload(long id, String target, String name, long size, Path path, FileChannel channel) {
+            this.id = id;
+            this.target = target;
+            this.name = name;
+            this.size = size;
+            this.path = path;
+            this.channel = channel;
+            this.granted = Math.min(size, windowBytes);
+        }
+
+        public long getId() { return id; }
+        public String getTarget() { return target; }
+        public String getName() { return name; }
+        public long getSize() { return size; }
+
+        /** What the sender may send before it hears from the server again. */
+        public long getGranted() {
+            return granted;
+        }
+
+        public boolean isComplete() {
+            return received == size;
+        }
+
+        /** Moves {@code count} bytes from the socket stream to the spool file. */
+        public void receive(DataInputStream in, int count) throws IOException {
+            checkCredit(count);
+            ReadableByteChannel source = Channels.newChannel(in);
+            long done = 0;
+            while (done < count) {
+                long n = channel.transferFrom(source, received + done, count - done);
+                if (n <= 0) throw new ProtocolException("file data cut short");
+                done += n;
+            }
+            received(count);
+        }
+
+        /** Writes a chunk already read into {@code data} to the spool file. */
+        public void receive(ByteBuffer data) throws IOException {
+            int count = data.remaining();
+            checkCredit(count);
+            while (data.hasRemaining()) {
+                channel.write(data, received + count - data.remaining());
+            }
+            received(count);
+        }
+
+        private void checkCredit(int count) throws ProtocolException {
+            if (received + count > granted) {
+                throw new ProtocolException("file data beyond the credit granted for transfer " + id);
+            }
+        }
+
+        private void received(int count) {
+            received += count;
+            bytesReceived.add(count);
+        }
+
+        /**
+         * More credit once the sender has used half its window, or 0. Granting in halves
+         * keeps the sender busy while the next grant is on its way, without a message per chunk.
+         */
+        public long grant() {
+            if (granted == size || granted - received > windowBytes / 2) return 0;
+            long more = Math.min(size, received + windowBytes) - granted;
+            granted += more;
+            return more;
+        }
+
+        /**
+         * Closes the spool file for writing and shares it among {@code recipients} readers.
+         * Returns null, having deleted the file, if there are none.
+         */
+        public Spool finish(String from, int recipients) throws IOException {
+            channel.close();
+            if (recipients == 0) {
+                Files.deleteIfExists(path);
+                return null;
+            }
+            return new Spool(id, from, name, size, path, FileChannel.open(path, StandardOpenOption.READ), recipients);
+        }
+
+        /** Gives up on the upload and deletes what had arrived. */
+        public void discard() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                ExceptionHandler.handle("Deleting abandoned upload", e);
+            }
+        }
+    }
+
+    /** A finished upload, read concurrently by every recipient's writer at its own position. */
+    public final class Spool {
+        private final long id;
+        private final String from;
+        private final String name;
+        private final long size;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicInteger readers;
+
+        private Spool(long id, String from, String name, long size, Path path, FileChannel channel, int readers) {
+            this.id = id;
+            this.from = from;
+            this.name = name;
+            this.size = size;
+            this.path = path;
+            this.channel = channel;
+            this.readers = new AtomicInteger(readers);
+        }
+
+        public long getId() { return id; }
+        public String getFrom() { return from; }
+        public String getName() { return name; }
+        public long getSize() { return size; }
+
+        public Download newDownload() {
+            return new Download(this);
+        }
+
+        // The last reader out closes and deletes the file
+        private void release() {
+            if (readers.decrementAndGet() > 0) return;
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                ExceptionHandler.handle("Deleting delivered upload", e);
+            }
+        }
+    }
+
+    /** One recipient's progress through a spool; touched only by that recipient's writer. */
+    public final class Download {
+        private final Spool spool;
+        private long position;
+
+        private Download(Spool spool) {
+            this.spool = spool;
+        }
+
+        public long getId() {
+            return spool.id;
+        }
+
+        /** Size of the next FILE frame's data. */
+        public int nextChunk() {
+            return (int) Math.min(FileTransfer.CHUNK_BYTES, spool.size - position);
+        }
+
+        public boolean isDone() {
+            return position == spool.size;
+        }
+
+        /**
+         * Sends up to {@code count} bytes from the current position and returns how many
+         * went; a non-blocking socket may take fewer, or none.
+         */
+        public long transferTo(WritableByteChannel target, long count) throws IOException {
+            long sent = spool.channel.transferTo(position, count, target);
+            position += sent;
+            bytesSent.add(sent);
+            if (isDone()) filesDelivered.increment();
+            return sent;
+        }
+
+        /** Called exactly once, when the download has finished or been abandoned. */
+        public void release() {
+            spool.release();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An outbound message shared, read-only, by every recipient it is queued for. The wire
+ * form is encoded lazily, at most once per protocol version, by whichever writer needs
+ * it first.
+ */
+public final class Frame {
+    private final byte type;
+    private final String text;
+    private final int fixedVersion;
+    private final long sequence;
+    private volatile byte[] utf8;
+    private volatile byte[] version1;
+    private volatile byte[] version2;
+
+    private Frame(byte type, String text, int fixedVersion, long sequence) {
+        this.type = type;
+        this.text = text;
+        this.fixedVersion = fixedVersion;
+        this.sequence = sequence;
+    }
+
+    /** A server notice. */
+    public static Frame of(String text) {
+        return of(WireProtocol.SYSTEM, text);
+    }
+
+    public static Frame of(byte type, String text) {
+        return new Frame(type, text, 0, 0);
+    }
+
+    /** A broadcast numbered by the server's {@link Sequencer}. */
+    public static Frame sequenced(long sequence, byte type, String text) {
+        return new Frame(type, text, 0, sequence);
+    }
+
+    /** Always sent as a writeUTF string, whatever the connection has negotiated. */
+    public static Frame legacy(String text) {
+        return new Frame(WireProtocol.CONTROL, text, WireProtocol.VERSION_1, 0);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /** 0 unless the frame is a numbered broadcast. */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /** The text in UTF-8, encoded once and shared by the log, the history and version 2 frames. Do not modify. */
+    public byte[] utf8() {
+        byte[] bytes = utf8;
+        if (bytes == null) utf8 = bytes = text.getBytes(StandardCharsets.UTF_8);
+        return bytes;
+    }
+
+    /** The frame's bytes for a connection speaking {@code version}. */
+    public byte[] encoded(int version) throws IOException {
+        if (fixedVersion != 0) version = fixedVersion;
+        if (version == WireProtocol.VERSION_2) {
+            byte[] bytes = version2;
+            if (bytes == null) version2 = bytes = WireProtocol.encode(type, sequence, utf8());
+            return bytes;
+        }
+        byte[] bytes = version1;
+        if (bytes == null) version1 = bytes = ModifiedUtf8.encodeFrame(text);
+        return bytes;
+    }
+}
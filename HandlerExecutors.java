@@ -0,0 +1,55 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Builds the executor that runs blocking {@link ClientHandler}s. Virtual threads are
+ * looked up reflectively so the server still compiles and runs on JDKs without them,
+ * falling back to a platform thread per client.
+ */
+public final class HandlerExecutors {
+
+    private HandlerExecutors() {}
+
+    public static Executor create(ServerConfig config) {
+        switch (config.getHandlerExecutor()) {
+            case VIRTUAL:
+                ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+                if (virtual != null) return virtual;
+                ExceptionHandler.handleWarning("Virtual threads are not available on this JVM, using platform threads");
+                return platformThreadPerTask();
+            case FIXED:
+                return Executors.newFixedThreadPool(config.getHandlerThreads());
+            default:
+                return platformThreadPerTask();
+        }
+    }
+
+    public static String describe(ServerConfig config) {
+        if (config.getHandlerExecutor() == ServerConfig.HandlerExecutor.FIXED) {
+            return "fixed pool of " + config.getHandlerThreads() + " threads, "
+                    + config.getHandlerThreads() / 2 + " clients";
+        }
+        return config.getHandlerExecutor().name().toLowerCase() + " thread per client";
+    }
+
+    /** A new virtual thread per task where the JVM has them, otherwise a platform thread. */
+    public static Executor threadPerTask() {
+        ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+        return virtual != null ? virtual : platformThreadPerTask();
+    }
+
+    private static Executor platformThreadPerTask() {
+        return task -> new Thread(task).start();
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram: values below 64ns are
+ * counted exactly, larger ones in 32 linear sub-buckets per power of two, so any
+ * reported percentile is within about 3% of the true value. Recording is one array
+ * increment; nothing is allocated.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int EXACT_LIMIT = SUB_BUCKETS * 2;
+    private static final int EXACT_EXPONENT = SUB_BUCKET_BITS + 1;
+    private static final int BUCKETS = EXACT_LIMIT + (63 - EXACT_EXPONENT) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(indexOf(nanos));
+        total.increment();
+        if (nanos > max.get()) max.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    /** The value at {@code quantile} (0..1), in nanoseconds; zero if nothing was recorded. */
+    public long percentileNanos(double quantile) {
+        long count = total.sum();
+        if (count == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) return Math.min(valueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    private static int indexOf(long value) {
+        if (value < EXACT_LIMIT) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return EXACT_LIMIT + (exponent - EXACT_EXPONENT) * SUB_BUCKETS + sub;
+    }
+
+    // Midpoint of the bucket's range
+    private static long valueOf(int index) {
+        if (index < EXACT_LIMIT) return index;
+        int exponent = (index - EXACT_LIMIT) / SUB_BUCKETS + EXACT_EXPONENT;
+        int sub = (index - EXACT_LIMIT) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + sub * width + width / 2;
+    }
+}
@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless swarm of chat clients for capacity testing a server before a rollout. Every
+ * client connects through {@link ChatConnection}, runs the same script of joins, sends
+ * and leaves at a fixed message rate, and stamps each message with its send time so
+ * the swarm can report end-to-end delivery latency and per-client throughput.
+ *
+ * Usage: {@code java [options] LoadGenerator <server-ip> <server-port>}, with options
+ * as system properties:
+ * <pre>
+ *   chat.load.clients        concurrent connections (1000)
+ *   chat.load.rate           messages per second per client (1)
+ *   chat.load.rooms          rooms to spread clients over, substituted for {room} (10)
+ *   chat.load.script         steps separated by ';' (join {room}; leave lobby; send 60; leave {room})
+ *                            join ROOM, leave [ROOM], send COUNT, pause MILLIS
+ *   chat.load.messageBytes   size of each chat message (64)
+ *   chat.load.rampSeconds    spread connection setup over this long (10)
+ *   chat.load.reportSeconds  progress report interval (5)
+ *   chat.load.email / chat.load.password  account the swarm logs in as
+ * </pre>
+ * Only the first client checks the password; the rest resume its session token, so the
+ * server's password hashing does not dominate the ramp-up. The server's own rate limits
+ * (chat.rate.*) apply to the swarm like any other client, and so does its limit on new
+ * connections per second (chat.accept.connectionsPerSecond): keep the ramp under it.
+ * Loopback clients are spared the per-address limits unless chat.accept.limitLoopback is set.
+ */
+public class LoadGenerator {
+    // Prefix of every generated message: "LT <send nanoTime> <padding>"
+    private static final String STAMP = "LT ";
+
+    private final String host;
+    private final int port;
+    private final int clients = Math.max(1, ServerConfig.intProperty("chat.load.clients", 1000));
+    private final double rate = Double.parseDouble(System.getProperty("chat.load.rate", "1"));
+    private final int rooms = Math.max(1, ServerConfig.intProperty("chat.load.rooms", 10));
+    private final List<String[]> script = parseScript(
+            System.getProperty("chat.load.script", "join {room}; leave lobby; send 60; leave {room}"));
+    private final int messageBytes = Math.max(32, ServerConfig.intProperty("chat.load.messageBytes", 64));
+    private final long rampNanos = TimeUnit.SECONDS.toNanos(ServerConfig.intProperty("chat.load.rampSeconds", 10));
+    private final int reportSeconds = Math.max(1, ServerConfig.intProperty("chat.load.reportSeconds", 5));
+    private final String email = System.getProperty("chat.load.email", "loadtest@example.com");
+    private final String password = System.getProperty("chat.load.password", "loadtest");
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final Executor threads = HandlerExecutors.threadPerTask();
+
+    public LoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /** One simulated user: a script runner and a reader sharing one connection. */
+    private final class SwarmClient {
+        private final int index;
+        private final String room;
+        private ChatConnection connection;
+        private volatile long sentCount;
+        private volatile long receivedCount;
+        private volatile long startedAt;
+        private volatile long finishedAt;
+
+        SwarmClient(int index) {
+            this.index = index;
+            this.room = "load" + (index % rooms);
+        }
+
+        void run(String token, long startAt, CountDownLatch scriptsDone) {
+            try {
+                sleepUntil(startAt);
+                connection = new ChatConnection(host, port);
+                if (!connection.resume(token, "load" + index)) {
+                    throw new IOException(connection.getFailureReason());
+                }
+                connected.incrementAndGet();
+                startedAt = System.nanoTime();
+                threads.execute(this::readLoop);
+                runScript();
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                System.err.println("[Load] client " + index + " failed: " + e.getMessage());
+            } finally {
+                finishedAt = System.nanoTime();
+                scriptsDone.countDown();
+            }
+        }
+
+        private void runScript() throws IOException {
+            long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            String padding = "x".repeat(messageBytes);
+            for (String[] step : script) {
+                String argument = step.length > 1 ? step[1].replace("{room}", room) : "";
+                switch (step[0]) {
+                    case "join":
+                        connection.send("/join " + argument);
+                        break;
+                    case "leave":
+                        connection.send(argument.isEmpty() ? "/leave" : "/leave " + argument);
+                        break;
+                    case "pause":
+                        sleepUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Long.parseLong(argument)));
+                        break;
+                    case "send":
+                        int count = Integer.parseInt(argument);
+                        long next = System.nanoTime();
+                        for (int i = 0; i < count; i++) {
+                            sleepUntil(next);
+                            String stamp = STAMP + System.nanoTime() + " ";
+                            connection.send(stamp + padding.substring(Math.min(padding.length(), stamp.length())));
+                            sentCount++;
+                            sent.increment();
+                            next += interval;
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown script step: " + step[0]);
+                }
+            }
+        }
+
+        private void readLoop() {
+            try {
+                while (true) {
+                    String message = connection.readMessage();
+                    int stamp = message.indexOf(": " + STAMP);
+                    if (stamp < 0) continue;
+                    int start = stamp + 2 + STAMP.length();
+                    int end = message.indexOf(' ', start);
+                    long sentAt = Long.parseLong(message.substring(start, end < 0 ? message.length() : end));
+                    latency.record(System.nanoTime() - sentAt);
+                    receivedCount++;
+                    received.increment();
+                }
+            } catch (IOException | RuntimeException e) {
+                // connection closed at the end of the run
+            }
+        }
+
+        double receivedPerSecond(long end) {
+            long elapsed = end - startedAt;
+            return startedAt == 0 || elapsed <= 0 ? 0 : receivedCount * 1e9 / elapsed;
+        }
+
+        double sentPerSecond() {
+            long elapsed = finishedAt - startedAt;
+            return startedAt == 0 || elapsed <= 0 ? 0 : sentCount * 1e9 / elapsed;
+        }
+    }
+
+    public void run() throws IOException, InterruptedException {
+        String token = obtainToken();
+        System.out.println("[Load] " + clients + " clients, " + rate + " msg/s each, " + rooms
+                + " rooms, script: " + describeScript());
+
+        List<SwarmClient> swarm = new ArrayList<>(clients);
+        CountDownLatch scriptsDone = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            SwarmClient client = new SwarmClient(i);
+            swarm.add(client);
+            long startAt = start + rampNanos * i / clients;
+            threads.execute(() -> client.run(token, startAt, scriptsDone));
+        }
+
+        long lastSent = 0, lastReceived = 0;
+        while (!scriptsDone.await(reportSeconds, TimeUnit.SECONDS)) {
+            long s = sent.sum(), r = received.sum();
+            System.out.printf("[Load] %ds: %d connected, %d failed, sent %d/s, received %d/s, latency %s%n",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), connected.get(), failed.get(),
+                    (s - lastSent) / reportSeconds, (r - lastReceived) / reportSeconds, describeLatency());
+            lastSent = s;
+            lastReceived = r;
+        }
+        // Let messages still in flight arrive before hanging up
+        Thread.sleep(2000);
+        long end = System.nanoTime();
+        for (SwarmClient client : swarm) {
+            if (client.connection != null) client.connection.close();
+        }
+        report(swarm, end - start, end);
+    }
+
+    private String obtainToken() throws IOException {
+        try (ChatConnection first = new ChatConnection(host, port)) {
+            if (first.login(email, password, "load-admin")) return first.getSessionToken();
+        }
+        try (ChatConnection first = new ChatConnection(host, port)) {
+            if (first.register(email, password, "load-admin")) return first.getSessionToken();
+            throw new IOException("Could not log in or register " + email + ": " + first.getFailureReason());
+        }
+    }
+
+    private void report(List<SwarmClient> swarm, long elapsed, long end) {
+        double seconds = elapsed / 1e9;
+        double[] receiveRates = swarm.stream().mapToDouble(c -> c.receivedPerSecond(end)).sorted().toArray();
+        double[] sendRates = swarm.stream().mapToDouble(SwarmClient::sentPerSecond).sorted().toArray();
+        System.out.printf("[Load] Finished in %.1fs: %d of %d clients connected, %d failed%n",
+                seconds, connected.get(), clients, failed.get());
+        System.out.printf("[Load] Sent %d messages (%.0f/s), received %d deliveries (%.0f/s)%n",
+                sent.sum(), sent.sum() / seconds, received.sum(), received.sum() / seconds);
+        System.out.println("[Load] Delivery latency: " + describeLatency() + ", max "
+                + millis(latency.getMaxNanos()));
+        System.out.printf("[Load] Per-client send rate: min %.2f, median %.2f, max %.2f msg/s%n",
+                sendRates[0], sendRates[sendRates.length / 2], sendRates[sendRates.length - 1]);
+        System.out.printf("[Load] Per-client receive rate: min %.2f, median %.2f, max %.2f msg/s%n",
+                receiveRates[0], receiveRates[receiveRates.length / 2], receiveRates[receiveRates.length - 1]);
+    }
+
+    private String describeLatency() {
+        return "p50 " + millis(latency.percentileNanos(0.50)) + ", p99 " + millis(latency.percentileNanos(0.99))
+                + ", p99.9 " + millis(latency.percentileNanos(0.999));
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2fms", nanos / 1e6);
+    }
+
+    private String describeScript() {
+        StringBuilder sb = new StringBuilder();
+        for (String[] step : script) {
+            if (sb.length() > 0) sb.append("; ");
+            sb.append(String.join(" ", step));
+        }
+        return sb.toString();
+    }
+
+    private static List<String[]> parseScript(String script) {
+        List<String[]> steps = new ArrayList<>();
+        for (String step : script.split(";")) {
+            String[] parts = step.trim().split("\\s+", 2);
+            if (parts[0].isEmpty()) continue;
+            if (!Arrays.asList("join", "leave", "send", "pause").contains(parts[0])) {
+                throw new IllegalArgumentException("Unknown script step: " + step.trim());
+            }
+            steps.add(parts);
+        }
+        return steps;
+    }
+
+    private static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java [-Dchat.load.clients=N ...] LoadGenerator <server-ip> <server-port>");
+            return;
+        }
+        new LoadGenerator(args[0], Integer.parseInt(args[1])).run();
+        System.exit(0);
+    }
+}
@@ -1,75 +1,189 @@
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
+/**
+ * Credential store. users.txt is loaded once into a concurrent index; new registrations
+ * (and plaintext passwords upgraded to hashes on login) are appended to users.wal and
+ * folded back into users.txt by periodic compaction. Lookups and password hashing take
+ * no lock; only the files are guarded.
+ */
 public class LoginSystem {
-    private static final String USER_FILE = "users.txt";
+    private static final String USERS_DIR = System.getProperty("chat.users.dir", ".");
+    private static final String USER_FILE = Paths.get(USERS_DIR, "users.txt").toString();
+    private static final String WAL_FILE = Paths.get(USERS_DIR, "users.wal").toString();
     private static final Pattern EMAIL_PATTERN = Pattern.compile("^[\\w.-]+@[\\w.-]+\\.[a-zA-Z]{2,}$");
+    private static final int COMPACT_AFTER = Math.max(1, ServerConfig.intProperty("chat.users.compactAfter", 1000));
+    private static final int COMPACT_MINUTES = Math.max(1, ServerConfig.intProperty("chat.users.compactMinutes", 10));
 
-    public static synchronized boolean register(String email, String password) {
+    // Unknown accounts are checked against this, so they take as long to refuse as a wrong password
+    private static final String DUMMY_HASH = PasswordHasher.hash("no such user");
+
+    private static final Map<String, String> users = new ConcurrentHashMap<>();
+    // Guards users.txt and users.wal; never held while hashing
+    private static final ReentrantLock fileLock = new ReentrantLock();
+    private static int walEntries;
+    private static volatile boolean loaded;
+
+    public static boolean register(String email, String password) {
         if (email == null || password == null) {
-            System.out.println("Email or password cannot be null!");
+            ServerLogger.log("Registration refused: email or password missing");
             return false;
         }
 
         if (!EMAIL_PATTERN.matcher(email).matches()) {
-            System.out.println("Invalid email format!");
+            ServerLogger.log("Registration refused: invalid email format");
             return false;
         }
 
+        ensureLoaded();
         if (userExists(email)) {
-            System.out.println("User already exists!");
+            ServerLogger.log("Registration refused: " + email + " already exists");
             return false;
         }
 
-        try (FileWriter fw = new FileWriter(USER_FILE, true);
-             PrintWriter pw = new PrintWriter(fw)) {
-            pw.println(email + "," + password);
-            System.out.println("Registration successful!");
+        String credential = PasswordHasher.hash(password);
+        if (users.putIfAbsent(email, credential) != null) {
+            ServerLogger.log("Registration refused: " + email + " already exists");
+            return false;
+        }
+
+        try {
+            appendToWal(email, credential);
             ServerLogger.log("New user registered: " + email);
             return true;
         } catch (IOException e) {
+            users.remove(email, credential);
             ExceptionHandler.handle("Registering user failed", e);
             return false;
         }
     }
 
-    public static synchronized boolean login(String email, String password) {
+    public static boolean login(String email, String password) {
         if (email == null || password == null) return false;
 
         if (!EMAIL_PATTERN.matcher(email).matches()) {
-            System.out.println("Invalid email format!");
+            ServerLogger.log("Login refused: invalid email format");
             return false;
         }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(USER_FILE))) {
+        ensureLoaded();
+        String stored = users.get(email);
+        if (stored == null) {
+            // Same work as a wrong password, so timing does not reveal which accounts exist
+            PasswordHasher.verify(password, DUMMY_HASH);
+        } else if (PasswordHasher.verify(password, stored)) {
+            if (!PasswordHasher.isHashed(stored)) {
+                upgradeLegacyPassword(email, password, stored);
+            }
+            ServerLogger.log("User logged in: " + email);
+            return true;
+        }
+
+        ServerLogger.log("Login failed: " + email);
+        return false;
+    }
+
+    private static boolean userExists(String email) {
+        return users.containsKey(email);
+    }
+
+    public static int userCount() {
+        ensureLoaded();
+        return users.size();
+    }
+
+    private static void upgradeLegacyPassword(String email, String password, String plaintext) {
+        String credential = PasswordHasher.hash(password);
+        if (!users.replace(email, plaintext, credential)) return;
+        try {
+            appendToWal(email, credential);
+        } catch (IOException e) {
+            ExceptionHandler.handle("Upgrading stored password failed", e);
+        }
+    }
+
+    private static void ensureLoaded() {
+        if (loaded) return;
+        fileLock.lock();
+        try {
+            if (loaded) return;
+            readInto(USER_FILE);
+            walEntries = readInto(WAL_FILE);
+            loaded = true;
+        } finally {
+            fileLock.unlock();
+        }
+        ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "users-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(LoginSystem::compact, COMPACT_MINUTES, COMPACT_MINUTES, TimeUnit.MINUTES);
+    }
+
+    // Caller must hold fileLock
+    private static int readInto(String file) {
+        int count = 0;
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
             String line;
             while ((line = br.readLine()) != null) {
                 String[] parts = line.split(",", 2);
-                if (parts.length == 2 && parts[0].equals(email) && parts[1].equals(password)) {
-                    System.out.println("Login successful!");
-                    ServerLogger.log("User logged in: " + email);
-                    return true;
+                if (parts.length == 2) {
+                    users.put(parts[0], parts[1]);
+                    count++;
                 }
             }
         } catch (FileNotFoundException e) {
             // file not yet created - no users registered
         } catch (IOException e) {
-            ExceptionHandler.handle("Login check failed", e);
+            ExceptionHandler.handle("Loading " + file + " failed", e);
         }
+        return count;
+    }
 
-        System.out.println("Invalid credentials!");
-        return false;
+    private static void appendToWal(String email, String credential) throws IOException {
+        boolean compactNow;
+        fileLock.lock();
+        try (FileWriter fw = new FileWriter(WAL_FILE, true);
+             PrintWriter pw = new PrintWriter(fw)) {
+            pw.println(email + "," + credential);
+            if (pw.checkError()) throw new IOException("write to " + WAL_FILE + " failed");
+            compactNow = ++walEntries >= COMPACT_AFTER;
+        } finally {
+            fileLock.unlock();
+        }
+        if (compactNow) compact();
     }
 
-    private static synchronized boolean userExists(String email) {
-        try (BufferedReader br = new BufferedReader(new FileReader(USER_FILE))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.startsWith(email + ",")) {
-                    return true;
+    /** Rewrites users.txt from the index and truncates the write-ahead log. */
+    public static void compact() {
+        fileLock.lock();
+        try {
+            if (walEntries == 0) return;
+            Path snapshot = Paths.get(USER_FILE + ".tmp");
+            try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(snapshot))) {
+                for (Map.Entry<String, String> entry : users.entrySet()) {
+                    pw.println(entry.getKey() + "," + entry.getValue());
                 }
+                if (pw.checkError()) throw new IOException("write to " + snapshot + " failed");
             }
-        } catch (IOException ignored) {}
-        return false;
+            Files.move(snapshot, Paths.get(USER_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(Paths.get(WAL_FILE));
+            walEntries = 0;
+        } catch (IOException e) {
+            ExceptionHandler.handle("Compacting user store failed", e);
+        } finally {
+            fileLock.unlock();
+        }
     }
 }
@@ -0,0 +1,448 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only chat history kept in memory-mapped segment files under history/.
+ * Each record is
+ * <pre>
+ *   int length | long id | long timestamp | short roomLength | room | text | int length
+ * </pre>
+ * The trailing length lets readers walk a segment backwards, and the leading length is
+ * written last so a torn record reads as end-of-segment after a crash. Every
+ * {@link #INDEX_INTERVAL}th record goes into a sparse in-memory index, so a lookup by id
+ * is a binary search plus a short forward scan inside one mapped segment.
+ *
+ * Tunables (system properties): chat.history.dir, chat.history.segmentBytes,
+ * chat.history.retentionMegabytes and chat.history.retentionHours. Retention is applied
+ * whenever a segment rolls over, and by {@link #expire()}, which the server runs on a
+ * timer so that history ages out of a quiet server too.
+ *
+ * Reads walk mapped segments and can cover the whole retained history, so callers on
+ * latency-sensitive threads hand them to a worker.
+ */
+public class MessageStore implements AutoCloseable {
+    private static final int INDEX_INTERVAL = 64;
+    private static final int FIXED_BYTES = 4 + 8 + 8 + 2 + 4;
+    private static final String SUFFIX = ".seg";
+    // Room for the "[HH:mm:ss] #room user: " prefix a chat line adds to the message
+    private static final int LINE_PREFIX_BYTES = 64 * 1024;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    // Guards appends, segment roll/retention and the sparse indexes
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Segment[] segments = new Segment[0];
+    private long nextId = 1;
+
+    public MessageStore(Path directory, int segmentBytes, long retentionBytes, long retentionMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    public static MessageStore fromSystemProperties() throws IOException {
+        Path dir = Paths.get(System.getProperty("chat.history.dir", "history"));
+        // Never smaller than a record for the largest message the protocol lets in
+        int segmentBytes = Math.max(Math.max(1 << 20, WireProtocol.MAX_FRAME_BYTES + LINE_PREFIX_BYTES + FIXED_BYTES),
+                ServerConfig.intProperty("chat.history.segmentBytes", 64 << 20));
+        long retentionBytes = (long) Math.max(1, ServerConfig.intProperty("chat.history.retentionMegabytes", 1024)) << 20;
+        long retentionMillis = TimeUnit.HOURS.toMillis(ServerConfig.intProperty("chat.history.retentionHours", 7 * 24));
+        return new MessageStore(dir, segmentBytes, retentionBytes, retentionMillis);
+    }
+
+    /** A stored chat message. */
+    public static final class StoredMessage {
+        private final long id;
+        private final long timestamp;
+        private final String room;
+        private final String text;
+
+        StoredMessage(long id, long timestamp, String room, String text) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.room = room;
+            this.text = text;
+        }
+
+        public long getId() { return id; }
+        public long getTimestamp() { return timestamp; }
+        public String getRoom() { return room; }
+        public String getText() { return text; }
+    }
+
+    public long append(String room, String text) throws IOException {
+        return append(room, text, System.currentTimeMillis());
+    }
+
+    public long append(String room, String text, long timestamp) throws IOException {
+        return append(room, text.getBytes(StandardCharsets.UTF_8), timestamp);
+    }
+
+    /** Appends text that is already UTF-8 encoded, such as a broadcast {@link Frame}'s. */
+    public long append(String room, byte[] textBytes) throws IOException {
+        return append(room, textBytes, System.currentTimeMillis());
+    }
+
+    private long append(String room, byte[] textBytes, long timestamp) throws IOException {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        int length = FIXED_BYTES + roomBytes.length + textBytes.length;
+        if (length > segmentBytes || roomBytes.length > Short.MAX_VALUE) {
+            throw new IOException("message too large for history segment: " + length + " bytes");
+        }
+        lock.lock();
+        try {
+            Segment active = activeSegment();
+            if (active == null || active.committed + length > active.capacity) {
+                active = roll();
+            }
+            long id = nextId++;
+            ByteBuffer buffer = active.buffer;
+            int start = active.committed;
+            buffer.putLong(start + 4, id);
+            buffer.putLong(start + 12, timestamp);
+            buffer.putShort(start + 20, (short) roomBytes.length);
+            buffer.put(start + 22, roomBytes);
+            buffer.put(start + 22 + roomBytes.length, textBytes);
+            buffer.putInt(start + length - 4, length);
+            buffer.putInt(start, length); // written last: marks the record complete
+            active.onAppend(id, timestamp, start, length);
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The newest {@code limit} messages of a room, oldest first. */
+    public List<StoredMessage> lastInRoom(String room, int limit) {
+        List<StoredMessage> result = new ArrayList<>();
+        Segment[] current = segments;
+        for (int s = current.length - 1; s >= 0 && result.size() < limit; s--) {
+            Segment segment = current[s];
+            ByteBuffer view = segment.view();
+            int end = segment.committed;
+            while (end > 0 && result.size() < limit) {
+                int length = view.getInt(end - 4);
+                int start = end - length;
+                if (room.equals(readRoom(view, start))) {
+                    result.add(read(view, start));
+                }
+                end = start;
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /** Messages with an id greater than {@code afterId} in any of {@code rooms} (null for all), oldest first. */
+    public List<StoredMessage> since(long afterId, Set<String> rooms, int limit) {
+        List<StoredMessage> result = new ArrayList<>();
+        Segment[] current = segments;
+        for (int s = findSegment(current, afterId + 1); s < current.length && result.size() < limit; s++) {
+            Segment segment = current[s];
+            ByteBuffer view = segment.view();
+            int end = segment.committed;
+            int pos = segment.floorPosition(afterId + 1);
+            while (pos < end && result.size() < limit) {
+                int length = view.getInt(pos);
+                if (view.getLong(pos + 4) > afterId && (rooms == null || rooms.contains(readRoom(view, pos)))) {
+                    result.add(read(view, pos));
+                }
+                pos += length;
+            }
+        }
+        return result;
+    }
+
+    /** Looks up a single message by id; null if it was never written or has been retired. */
+    public StoredMessage read(long id) {
+        Segment[] current = segments;
+        int s = findSegment(current, id);
+        if (s >= current.length || id < current[s].baseId) return null;
+        Segment segment = current[s];
+        ByteBuffer view = segment.view();
+        int end = segment.committed;
+        for (int pos = segment.floorPosition(id); pos < end; pos += view.getInt(pos)) {
+            long recordId = view.getLong(pos + 4);
+            if (recordId == id) return read(view, pos);
+            if (recordId > id) break;
+        }
+        return null;
+    }
+
+    /** The oldest id still held; anything below it has been retired or was never written. */
+    public long firstId() {
+        Segment[] current = segments;
+        return current.length == 0 ? 1 : current[0].baseId;
+    }
+
+    public long lastId() {
+        lock.lock();
+        try {
+            return nextId - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Index of the last segment whose base id is <= id (0 if id precedes them all)
+    private static int findSegment(Segment[] current, long id) {
+        int low = 0;
+        int high = current.length - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (current[mid].baseId <= id) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private static String readRoom(ByteBuffer view, int start) {
+        int roomLength = view.getShort(start + 20);
+        byte[] room = new byte[roomLength];
+        view.get(start + 22, room);
+        return new String(room, StandardCharsets.UTF_8);
+    }
+
+    private static StoredMessage read(ByteBuffer view, int start) {
+        int length = view.getInt(start);
+        int roomLength = view.getShort(start + 20);
+        byte[] room = new byte[roomLength];
+        view.get(start + 22, room);
+        byte[] text = new byte[length - FIXED_BYTES - roomLength];
+        view.get(start + 22 + roomLength, text);
+        return new StoredMessage(view.getLong(start + 4), view.getLong(start + 12),
+                new String(room, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8));
+    }
+
+    // Caller must hold lock
+    private Segment activeSegment() {
+        Segment[] current = segments;
+        return current.length == 0 ? null : current[current.length - 1];
+    }
+
+    // Caller must hold lock
+    private Segment roll() throws IOException {
+        Segment previous = activeSegment();
+        if (previous != null) previous.seal();
+        Path path = directory.resolve(String.format("%020d%s", nextId, SUFFIX));
+        Segment segment = Segment.open(path, nextId, segmentBytes, true);
+        Segment[] current = segments;
+        Segment[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = segment;
+        segments = updated;
+        applyRetention();
+        return segment;
+    }
+
+    /**
+     * Drops segments past the retention age or size. An active segment whose newest message
+     * has itself expired is rolled first, so a server that has gone quiet still ages out.
+     */
+    public void expire() {
+        lock.lock();
+        try {
+            Segment active = activeSegment();
+            if (active != null && isExpired(active, System.currentTimeMillis())) {
+                try {
+                    roll();
+                } catch (IOException e) {
+                    ExceptionHandler.handle("Rolling expired history segment", e);
+                }
+            }
+            applyRetention();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isExpired(Segment segment, long now) {
+        return retentionMillis > 0 && segment.lastTimestamp > 0 && now - segment.lastTimestamp > retentionMillis;
+    }
+
+    // Caller must hold lock; never removes the active segment
+    private void applyRetention() {
+        Segment[] current = segments;
+        long total = 0;
+        for (Segment segment : current) total += segment.committed;
+        long now = System.currentTimeMillis();
+        int drop = 0;
+        while (drop < current.length - 1) {
+            Segment oldest = current[drop];
+            boolean tooBig = total > retentionBytes;
+            boolean tooOld = isExpired(oldest, now);
+            if (!tooBig && !tooOld) break;
+            total -= oldest.committed;
+            oldest.delete();
+            drop++;
+        }
+        if (drop > 0) segments = Arrays.copyOfRange(current, drop, current.length);
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : stream) files.add(path);
+        }
+        Collections.sort(files);
+        List<Segment> recovered = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            Path path = files.get(i);
+            long baseId = Long.parseLong(path.getFileName().toString().replace(SUFFIX, ""));
+            Segment segment = Segment.open(path, baseId, segmentBytes, i == files.size() - 1);
+            segment.scan();
+            if (segment.lastId >= segment.baseId) nextId = segment.lastId + 1;
+            recovered.add(segment);
+        }
+        segments = recovered.toArray(new Segment[0]);
+        lock.lock();
+        try {
+            applyRetention();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            Segment active = activeSegment();
+            if (active != null) active.seal();
+            for (Segment segment : segments) segment.closeChannel();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Segment {
+        final Path path;
+        final long baseId;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        volatile int committed;
+        long lastId;
+        long lastTimestamp;
+        // Sparse index: every INDEX_INTERVAL-th record's id and position
+        long[] indexIds = new long[16];
+        int[] indexPositions = new int[16];
+        int indexSize;
+        int records;
+
+        private Segment(Path path, long baseId, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.baseId = baseId;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity();
+            this.lastId = baseId - 1;
+        }
+
+        static Segment open(Path path, long baseId, int segmentBytes, boolean writable) throws IOException {
+            FileChannel channel = writable
+                    ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                    : FileChannel.open(path, StandardOpenOption.READ);
+            long size = writable ? Math.max(channel.size(), segmentBytes) : channel.size();
+            MappedByteBuffer buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+            return new Segment(path, baseId, channel, buffer);
+        }
+
+        void scan() {
+            int pos = 0;
+            while (pos + FIXED_BYTES <= capacity) {
+                int length = buffer.getInt(pos);
+                if (length < FIXED_BYTES || pos + length > capacity || buffer.getInt(pos + length - 4) != length) break;
+                onAppend(buffer.getLong(pos + 4), buffer.getLong(pos + 12), pos, length);
+                pos += length;
+            }
+        }
+
+        // Caller must hold the store lock
+        void onAppend(long id, long timestamp, int position, int length) {
+            if (records++ % INDEX_INTERVAL == 0) {
+                if (indexSize == indexIds.length) {
+                    indexIds = Arrays.copyOf(indexIds, indexSize * 2);
+                    indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+                }
+                indexPositions[indexSize] = position;
+                indexIds[indexSize++] = id; // published by the volatile write to committed below
+            }
+            lastId = id;
+            lastTimestamp = timestamp;
+            committed = position + length;
+        }
+
+        // Position of the last indexed record with id <= the given id
+        int floorPosition(long id) {
+            int size = indexSize;
+            long[] ids = indexIds;
+            int[] positions = indexPositions;
+            int low = 0;
+            int high = Math.min(size, ids.length) - 1;
+            int found = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (ids[mid] <= id) {
+                    found = positions[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        ByteBuffer view() {
+            return buffer.duplicate();
+        }
+
+        void seal() {
+            try {
+                buffer.force();
+                if (channel.size() > committed) channel.truncate(committed);
+            } catch (IOException e) {
+                ExceptionHandler.handle("Sealing history segment " + path, e);
+            }
+        }
+
+        void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+
+        void delete() {
+            closeChannel();
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                ExceptionHandler.handle("Deleting history segment " + path, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder/decoder for the frames produced by {@link java.io.DataOutputStream#writeUTF}:
+ * a two byte big-endian length followed by modified UTF-8. Lets non-blocking code
+ * speak the same wire format as the stream based clients.
+ */
+public final class ModifiedUtf8 {
+    public static final int MAX_LENGTH = 0xFFFF;
+    public static final int HEADER_LENGTH = 2;
+
+    private ModifiedUtf8() {}
+
+    public static int encodedLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /** Returns the complete frame, length prefix included, exactly as writeUTF would send it. */
+    public static byte[] encodeFrame(String s) throws UTFDataFormatException {
+        int length = encodedLength(s);
+        if (length > MAX_LENGTH) {
+            throw new UTFDataFormatException("encoded string too long: " + length + " bytes");
+        }
+        byte[] frame = new byte[HEADER_LENGTH + length];
+        frame[0] = (byte) (length >>> 8);
+        frame[1] = (byte) length;
+        int pos = HEADER_LENGTH;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                frame[pos++] = (byte) c;
+            } else if (c > 0x07FF) {
+                frame[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                frame[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                frame[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                frame[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                frame[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return frame;
+    }
+
+    /** Decodes {@code length} bytes of modified UTF-8 starting at the buffer's position and advances it. */
+    public static String decode(ByteBuffer buffer, int length) throws UTFDataFormatException {
+        char[] chars = new char[length];
+        int count = 0;
+        int end = buffer.position() + length;
+        while (buffer.position() < end) {
+            int a = buffer.get() & 0xFF;
+            if (a < 0x80) {
+                chars[count++] = (char) a;
+            } else if ((a & 0xE0) == 0xC0) {
+                if (buffer.position() >= end) throw malformed();
+                int b = buffer.get() & 0xFF;
+                if ((b & 0xC0) != 0x80) throw malformed();
+                chars[count++] = (char) (((a & 0x1F) << 6) | (b & 0x3F));
+            } else if ((a & 0xF0) == 0xE0) {
+                if (buffer.position() + 1 >= end) throw malformed();
+                int b = buffer.get() & 0xFF;
+                int c = buffer.get() & 0xFF;
+                if ((b & 0xC0) != 0x80 || (c & 0xC0) != 0x80) throw malformed();
+                chars[count++] = (char) (((a & 0x0F) << 12) | ((b & 0x3F) << 6) | (c & 0x3F));
+            } else {
+                throw malformed();
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private static UTFDataFormatException malformed() {
+        return new UTFDataFormatException("malformed input");
+    }
+}
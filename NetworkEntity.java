@@ -1,14 +1,11 @@
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 
 public abstract class NetworkEntity {
     protected DataInputStream input;
     protected DataOutputStream output;
     protected boolean connected = true;
-    protected final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("HH:mm:ss");
 
     public void sendMessage(String message) {
         try {
@@ -22,7 +19,7 @@ public abstract class NetworkEntity {
     }
 
     protected String getCurrentTime() {
-        return dtf.format(LocalDateTime.now());
+        return CachedClock.time();
     }
 
     // Abstract methods to be implemented by subclasses
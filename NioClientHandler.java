@@ -0,0 +1,381 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link ClientHandler} driven by a {@link NioEventLoop} instead of a dedicated thread.
+ * Reads are decoded incrementally from a per-connection buffer that starts small, grows
+ * to fit a large frame and shrinks again once it has been consumed; the outbound queue
+ * is flushed by the owning event loop whenever the socket can take more data.
+ *
+ * Files are sent straight from the spool file to the socket with
+ * {@link java.nio.channels.FileChannel#transferTo}, one chunk per flush and only once the
+ * chat queue is empty, so neither this client's chat nor the other connections on the
+ * loop wait behind a large download.
+ *
+ * Over TLS all reads and writes go through a {@link TlsChannel} instead, which may hold
+ * input the selector does not know about and output the socket has yet to take.
+ */
+public class NioClientHandler extends ClientHandler {
+    private final SocketChannel channel;
+    // Null for plaintext connections
+    private final TlsChannel tls;
+    // The channel reads and writes go through: tls if there is one, else the socket
+    private final ByteChannel io;
+    private final NioEventLoop loop;
+    private final SocketAddress remoteAddress;
+    private static final int INITIAL_READ_BUFFER = 4096;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Bytes the socket would not take yet; only allocated while the client is backed up
+    private ByteBuffer backlog;
+    // The download whose chunk is partly written, and how much of the chunk is left
+    private FileTransfers.Download chunk;
+    private long chunkRemaining;
+    private SelectionKey key;
+    private boolean firstFrame = true;
+    private boolean joined;
+    private boolean authenticating;
+    private boolean throttled;
+
+    public NioClientHandler(SocketChannel channel, TlsChannel tls, ChatServer server, NioEventLoop loop) throws IOException {
+        super(server);
+        this.channel = channel;
+        this.tls = tls;
+        this.io = tls != null ? tls : channel;
+        this.loop = loop;
+        this.remoteAddress = channel.getRemoteAddress();
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public void sendFrame(Frame frame) {
+        super.sendFrame(frame);
+        if (connected && flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushWrites);
+        }
+    }
+
+    @Override
+    protected void abort() {
+        connected = false;
+        outbound.close();
+        loop.execute(this::disconnect);
+    }
+
+    // Event loop thread only
+    void onReadable() {
+        try {
+            do {
+                if (io.read(readBuffer) < 0) {
+                    disconnect();
+                    return;
+                }
+                decodeFrames();
+            } while (tls != null && connected && !readPaused() && tls.hasBufferedInput());
+            // Unwrapping may have produced a reply, such as to a TLS key update
+            if (tls != null && tls.hasPendingOutput()) flushWrites();
+        } catch (IOException e) {
+            handleError("Connection lost with " + getUsername(), e);
+            disconnect();
+        }
+    }
+
+    private void decodeFrames() throws IOException {
+        readBuffer.flip();
+        int needed = 0;
+        while (connected && !readPaused()) {
+            needed = nextFrameLength();
+            if (needed < 0 || readBuffer.remaining() < needed) break;
+            if (protocolVersion == WireProtocol.VERSION_2) {
+                int length = readBuffer.getInt();
+                byte type = readBuffer.get();
+                byte flags = readBuffer.get();
+                if (type == WireProtocol.FILE) {
+                    onFileData(length);
+                } else {
+                    WireProtocol.Message message = WireProtocol.decode(readBuffer, type, flags, length, maxFrameBytes());
+                    onFrame(message.getType(), message.getText());
+                }
+            } else {
+                int length = readBuffer.getShort() & 0xFFFF;
+                String message = ModifiedUtf8.decode(readBuffer, length);
+                onFrame(WireProtocol.typeOf(message), message);
+            }
+            long pause = takePause();
+            if (pause > 0) pauseReading(pause);
+        }
+        readBuffer.compact();
+        resizeReadBuffer(needed);
+        if (!connected) disconnect();
+    }
+
+    // Size of the next whole frame including its header, or -1 if the header is incomplete
+    private int nextFrameLength() throws IOException {
+        if (protocolVersion == WireProtocol.VERSION_2) {
+            if (readBuffer.remaining() < WireProtocol.HEADER_LENGTH) return -1;
+            int length = readBuffer.getInt(readBuffer.position());
+            WireProtocol.checkLength(length, maxFrameBytes());
+            if (readBuffer.get(readBuffer.position() + 4) == WireProtocol.FILE) WireProtocol.checkFileLength(length);
+            return WireProtocol.HEADER_LENGTH + length;
+        }
+        if (readBuffer.remaining() < ModifiedUtf8.HEADER_LENGTH) return -1;
+        int length = readBuffer.getShort(readBuffer.position()) & 0xFFFF;
+        WireProtocol.checkLength(length, maxFrameBytes());
+        return ModifiedUtf8.HEADER_LENGTH + length;
+    }
+
+    // Checked before the read buffer grows to fit a frame, so small until the client has logged in
+    private int maxFrameBytes() {
+        return joined ? WireProtocol.MAX_FRAME_BYTES : WireProtocol.MAX_HANDSHAKE_FRAME_BYTES;
+    }
+
+    // Called after compact(): the buffer holds only unconsumed bytes, from position 0
+    private void resizeReadBuffer(int needed) {
+        if (needed > readBuffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(needed);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        } else if (readBuffer.position() == 0 && readBuffer.capacity() > INITIAL_READ_BUFFER) {
+            readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        }
+    }
+
+    // The whole chunk is in the read buffer, which a FILE frame's size limit keeps small
+    private void onFileData(int length) throws IOException {
+        if (!joined || authenticating) throw new ProtocolException("file data before authentication");
+        long id = readBuffer.getLong();
+        ByteBuffer data = readBuffer.slice();
+        int count = length - Long.BYTES;
+        data.limit(count);
+        readBuffer.position(readBuffer.position() + count);
+        receiveFileData(id, data);
+    }
+
+    private void onFrame(byte type, String message) throws IOException {
+        if (joined) {
+            handleFrame(type, message);
+            return;
+        }
+        if (firstFrame) {
+            firstFrame = false;
+            if (message.equals(WireProtocol.HELLO)) {
+                sendFrame(Frame.legacy(WireProtocol.HELLO));
+                protocolVersion = WireProtocol.VERSION_2;
+                return;
+            }
+        }
+        joined = true;
+        startAuthentication(message);
+    }
+
+    /**
+     * Password hashing is far too slow for the event loop, so the handshake is checked on
+     * the server's worker pool. Reading pauses until the result is back on the loop.
+     */
+    private void startAuthentication(String handshake) {
+        authenticating = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        server.getWorkers().execute(() -> {
+            String name;
+            try {
+                name = authenticate(handshake);
+            } catch (IOException e) {
+                name = null;
+            }
+            String result = name;
+            loop.execute(() -> finishAuthentication(result));
+        });
+    }
+
+    // Event loop thread only
+    private void finishAuthentication(String name) {
+        authenticating = false;
+        if (name == null || !channel.isOpen()) {
+            flushWrites();
+            disconnect();
+            return;
+        }
+        onJoin(name);
+        resumeReading();
+    }
+
+    private boolean readPaused() {
+        return authenticating || throttled;
+    }
+
+    // A throttled client is simply not read from until its rate limit has recovered
+    private void pauseReading(long nanos) {
+        throttled = true;
+        if (key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        server.getTimers().schedule(() -> loop.execute(() -> {
+            throttled = false;
+            if (channel.isOpen()) resumeReading();
+        }), nanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Event loop thread only; also decodes whatever arrived while reading was paused
+    private void resumeReading() {
+        if (readPaused()) return;
+        if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        try {
+            decodeFrames();
+        } catch (IOException e) {
+            handleError("Connection lost with " + getUsername(), e);
+            disconnect();
+            return;
+        }
+        // Records already taken off the socket will not wake the selector
+        if (tls != null && connected && tls.hasBufferedInput()) onReadable();
+    }
+
+    @Override
+    protected void rejectHandshake(String reply) {
+        sendMessage(WireProtocol.CONTROL, reply);
+    }
+
+    @Override
+    protected void fileQueued() {
+        if (connected && flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushWrites);
+        }
+    }
+
+    // Event loop thread only
+    void flushWrites() {
+        flushScheduled.set(false);
+        if (!channel.isOpen()) return;
+        try {
+            if (tls != null) tls.flush();
+            if (backlog != null) {
+                recordWrite(0, io.write(backlog));
+                if (!backlog.hasRemaining()) backlog = null;
+            }
+            if (backlog == null && chunk != null) {
+                writeChunk();
+            }
+            if (backlog == null && chunk == null) {
+                writeQueued();
+                if (backlog == null) startChunk();
+            }
+            if (key != null && key.isValid()) {
+                int ops = readPaused() ? 0 : SelectionKey.OP_READ;
+                // A pending download asks for another flush once the loop has served everyone else
+                if (backlog != null || chunk != null || !downloads.isEmpty()
+                        || (tls != null && tls.hasPendingOutput())) ops |= SelectionKey.OP_WRITE;
+                if (key.interestOps() != ops) key.interestOps(ops);
+            }
+        } catch (IOException e) {
+            handleError("Error sending message", e);
+            disconnect();
+        }
+    }
+
+    /**
+     * Copies queued frames into the event loop's shared scratch buffer and writes them,
+     * so everything queued since the last flush goes out in as few writes as possible.
+     * Encoded frames are shared between recipients, so nothing is allocated per recipient
+     * unless the socket refuses part of a write, in which case the remainder becomes the
+     * backlog. A frame larger than the scratch buffer is copied over several passes.
+     */
+    private void writeQueued() throws IOException {
+        ByteBuffer scratch = loop.scratchBuffer();
+        byte[] frame = null;
+        int offset = 0;
+        while (true) {
+            scratch.clear();
+            int batch = 0;
+            while (scratch.hasRemaining()) {
+                if (frame == null) {
+                    Frame next = outbound.poll();
+                    if (next == null) break;
+                    frame = encode(next);
+                    offset = 0;
+                    if (frame == null) continue;
+                    batch++;
+                }
+                int count = Math.min(scratch.remaining(), frame.length - offset);
+                scratch.put(frame, offset, count);
+                offset += count;
+                if (offset == frame.length) frame = null;
+            }
+            scratch.flip();
+            if (!scratch.hasRemaining()) return;
+            recordWrite(batch, io.write(scratch));
+            if (scratch.hasRemaining()) {
+                stashBacklog(scratch, frame, offset);
+                return;
+            }
+        }
+    }
+
+    // Chat has all been written; starts the next download in line on its next chunk
+    private void startChunk() throws IOException {
+        FileTransfers.Download download = downloads.poll();
+        if (download == null) return;
+        int count = download.nextChunk();
+        chunk = download;
+        chunkRemaining = count;
+        ByteBuffer header = ByteBuffer.wrap(WireProtocol.fileHeader(download.getId(), count));
+        recordWrite(0, io.write(header));
+        if (header.hasRemaining()) {
+            backlog = header;
+            return;
+        }
+        writeChunk();
+    }
+
+    // The socket may take part of the chunk, or none of it; the rest goes on the next flush
+    private void writeChunk() throws IOException {
+        long sent = chunk.transferTo(io, chunkRemaining);
+        recordWrite(0, sent);
+        chunkRemaining -= sent;
+        if (chunkRemaining > 0) return;
+        FileTransfers.Download done = chunk;
+        chunk = null;
+        chunkSent(done);
+    }
+
+    private void stashBacklog(ByteBuffer unwritten, byte[] partial, int offset) {
+        int size = unwritten.remaining() + (partial == null ? 0 : partial.length - offset);
+        backlog = ByteBuffer.allocate(size);
+        backlog.put(unwritten);
+        if (partial != null) backlog.put(partial, offset, partial.length - offset);
+        backlog.flip();
+    }
+
+    @Override
+    public void disconnect() {
+        if (!channel.isOpen()) return;
+        super.disconnect();
+    }
+
+    @Override
+    protected void closeResources() {
+        outbound.close();
+        backlog = null;
+        if (chunk != null) chunk.release();
+        chunk = null;
+        releaseDownloads();
+        if (key != null) key.cancel();
+        try {
+            io.close();
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    protected SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+}
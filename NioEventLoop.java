@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread serving many {@link NioClientHandler}s. Other threads hand work
+ * to the loop through {@link #execute(Runnable)}; all channel I/O happens on the loop thread.
+ */
+public class NioEventLoop implements Runnable {
+    private final ChatServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(256 * 1024);
+    private volatile boolean running = true;
+
+    public NioEventLoop(ChatServer server, String name) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /** Write staging buffer shared by every connection on this loop; loop thread only. */
+    ByteBuffer scratchBuffer() {
+        return scratch;
+    }
+
+    public void register(SocketChannel channel, AdmissionControl.Permit permit) {
+        register(channel, null, permit);
+    }
+
+    /** Registers a connection whose TLS handshake has completed on {@code tls}. */
+    public void register(SocketChannel channel, TlsChannel tls, AdmissionControl.Permit permit) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                NioClientHandler handler = new NioClientHandler(channel, tls, server, this);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, handler);
+                handler.attach(key);
+                server.clientConnected(handler, permit);
+                // The client may have spoken straight after the handshake, into the TLS buffers
+                if (tls != null && tls.hasBufferedInput()) handler.onReadable();
+            } catch (IOException e) {
+                server.log("Error registering client connection: " + e.getMessage());
+                ExceptionHandler.handle("Client registration error", e);
+                permit.release();
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioClientHandler handler = (NioClientHandler) key.attachment();
+                    if (key.isValid() && key.isReadable()) handler.onReadable();
+                    if (key.isValid() && key.isWritable()) handler.flushWrites();
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                server.log("Event loop error: " + e.getMessage());
+                ExceptionHandler.handle("Event loop error", e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Selector based alternative to the thread-per-client engine. The calling thread
+ * accepts connections, turning away those {@link AdmissionControl} refuses, and spreads
+ * the rest round-robin over a small pool of event loops.
+ * With TLS a connection reaches its loop only once the server's handshake pool has
+ * completed its handshake.
+ */
+public class NioServerEngine implements AutoCloseable {
+    private final ChatServer server;
+    private final NioEventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private int next;
+
+    public NioServerEngine(ChatServer server, int eventLoops) throws IOException {
+        this.server = server;
+        this.loops = new NioEventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new NioEventLoop(server, "nio-event-loop-" + i);
+        }
+    }
+
+    public void bind(int port) throws IOException {
+        ServerConfig config = server.getConfig();
+        serverChannel = ServerSocketChannel.open();
+        if (config.getReceiveBufferBytes() > 0) {
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferBytes());
+        }
+        serverChannel.bind(new InetSocketAddress(port), config.getAcceptBacklog());
+        for (NioEventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    public void acceptClientConnections() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                // Still in blocking mode, so a refusal can be written through the socket's stream
+                AdmissionControl.Permit permit = server.admit(channel.socket());
+                if (permit == null) continue;
+                NioEventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                SSLContext context = server.getTlsContext();
+                if (context == null) {
+                    loop.register(channel, permit);
+                    continue;
+                }
+                SSLEngine engine = context.createSSLEngine();
+                engine.setUseClientMode(false);
+                TlsChannel tls = new TlsChannel(channel, engine);
+                server.secure(channel, String.valueOf(channel.getRemoteAddress()), permit, () -> {
+                    tls.handshake();
+                    return engine.getSession();
+                }, () -> loop.register(channel, tls, permit));
+            } catch (IOException e) {
+                if (!serverChannel.isOpen()) break;
+                server.log("Error accepting client connection: " + e.getMessage());
+                ExceptionHandler.handle("Client connection accept error", e);
+            }
+        }
+    }
+
+    public int getEventLoopCount() {
+        return loops.length;
+    }
+
+    @Override
+    public void close() {
+        for (NioEventLoop loop : loops) {
+            loop.shutdown();
+        }
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,191 @@
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-client queue of pending outbound messages. Producers (broadcasting
+ * threads) never block: when the queue is full the configured overflow policy decides
+ * whether the oldest message, the new message, or the client itself has to go.
+ *
+ * Only messages the {@code droppable} test accepts are ever discarded. A message that
+ * must arrive takes the place of the oldest droppable one, and if none is left the
+ * queue overflows whatever the policy.
+ */
+public class OutboundQueue<T> {
+
+    public enum OverflowPolicy { DROP_OLDEST, DROP_NEWEST, DISCONNECT }
+
+    public enum Result { ACCEPTED, DROPPED, OVERFLOW }
+
+    private final Object[] items;
+    private final OverflowPolicy policy;
+    private final Predicate<? super T> droppable;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private int head;
+    private int count;
+    private boolean closed;
+    private boolean woken;
+    private volatile long dropped;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, item -> true);
+    }
+
+    public OutboundQueue(int capacity, OverflowPolicy policy, Predicate<? super T> droppable) {
+        this.items = new Object[Math.max(1, capacity)];
+        this.policy = policy;
+        this.droppable = droppable;
+    }
+
+    public Result offer(T item) {
+        lock.lock();
+        try {
+            if (closed) return Result.DROPPED;
+            if (count == items.length) {
+                if (policy == OverflowPolicy.DISCONNECT) return Result.OVERFLOW;
+                boolean newIsDroppable = droppable.test(item);
+                if (policy == OverflowPolicy.DROP_NEWEST && newIsDroppable) {
+                    dropped++;
+                    return Result.DROPPED;
+                }
+                if (!removeOldestDroppable()) {
+                    if (!newIsDroppable) return Result.OVERFLOW;
+                    // Everything queued must arrive, so the new message is the only one that can go
+                    dropped++;
+                    return Result.DROPPED;
+                }
+                dropped++;
+            }
+            items[(head + count) % items.length] = item;
+            count++;
+            notEmpty.signal();
+            return Result.ACCEPTED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller must hold lock. Droppable messages are the bulk of the traffic, so the scan
+    // normally stops within the first few slots.
+    private boolean removeOldestDroppable() {
+        for (int i = 0; i < count; i++) {
+            if (droppable.test(at(i))) {
+                // Close the gap by moving the messages ahead of it up one slot
+                for (int j = i; j > 0; j--) {
+                    items[(head + j) % items.length] = items[(head + j - 1) % items.length];
+                }
+                items[head] = null;
+                head = (head + 1) % items.length;
+                count--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T at(int index) {
+        return (T) items[(head + index) % items.length];
+    }
+
+    /**
+     * Waits for the next message; returns null once the queue has been closed, or if
+     * {@link #wakeUp()} was called while it was empty.
+     */
+    public T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (count == 0 && !closed && !woken) {
+                notEmpty.await();
+            }
+            woken = false;
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public T poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Waits up to {@code timeout} for a message; null if none arrived or the queue closed. */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (count == 0 && !closed && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller must hold lock
+    @SuppressWarnings("unchecked")
+    private T dequeue() {
+        T item = (T) items[head];
+        items[head] = null;
+        head = (head + 1) % items.length;
+        count--;
+        return item;
+    }
+
+    /** Makes a waiting, or the next, {@link #take()} return even if nothing has been queued. */
+    public void wakeUp() {
+        lock.lock();
+        try {
+            woken = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Discards pending messages and wakes up a waiting writer. */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            while (count > 0) dequeue();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    public long getDroppedCount() {
+        return dropped;
+    }
+}
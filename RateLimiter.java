@@ -0,0 +1,66 @@
+/**
+ * Inbound flood protection for one connection: a messages/sec and a bytes/sec token
+ * bucket, plus the server-wide bucket that caps broadcast fan-out. A limit of zero or
+ * less disables that bucket.
+ */
+public class RateLimiter {
+
+    /** What happens to a client that exceeds its limits. */
+    public enum Policy {
+        /** Every message is handled, but the connection stops reading until it is back under the limit. */
+        THROTTLE,
+        /** Over-limit messages are dropped and the sender is told. */
+        WARN,
+        /** The sender is disconnected. */
+        DISCONNECT
+    }
+
+    private final Policy policy;
+    private final TokenBucket messages;
+    private final TokenBucket bytes;
+    private final TokenBucket fanout;
+    private volatile long limitedCount;
+
+    public RateLimiter(ServerConfig config, TokenBucket fanout) {
+        this.policy = config.getRatePolicy();
+        this.messages = config.getMessagesPerSecond() > 0
+                ? new TokenBucket(config.getMessagesPerSecond(), config.getBurstMessages()) : null;
+        this.bytes = config.getBytesPerSecond() > 0
+                ? new TokenBucket(config.getBytesPerSecond(), config.getBurstBytes()) : null;
+        this.fanout = fanout;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /** For WARN and DISCONNECT: true if the message is within both limits, which are then charged. */
+    public boolean tryAdmit(int size) {
+        boolean admitted = (messages == null || messages.tryAcquire(1))
+                && (bytes == null || bytes.tryAcquire(size));
+        if (!admitted) limitedCount++;
+        return admitted;
+    }
+
+    /** For THROTTLE: charges the message and returns how long the connection should stop reading. */
+    public long admit(int size) {
+        long wait = 0;
+        if (messages != null) wait = messages.acquire(1);
+        if (bytes != null) wait = Math.max(wait, bytes.acquire(size));
+        if (wait > 0) limitedCount++;
+        return wait;
+    }
+
+    /**
+     * Charges a broadcast to the server-wide fan-out cap. Whatever the policy, the sender
+     * is throttled for the time the cap needs to recover.
+     */
+    public long chargeFanout(int recipients) {
+        return fanout == null || recipients == 0 ? 0 : fanout.acquire(recipients);
+    }
+
+    /** Messages that were throttled, dropped or refused by this limiter. */
+    public long getLimitedCount() {
+        return limitedCount;
+    }
+}
@@ -0,0 +1,53 @@
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Index from room name to its members. A room message only touches that room's
+ * {@link ClientRegistry}, so traffic in one room costs nothing to the others.
+ * Rooms are created on first join and dropped when the last member leaves.
+ */
+public class RoomDirectory {
+    public static final String DEFAULT_ROOM = "lobby";
+    private static final Pattern ROOM_NAME = Pattern.compile("[a-z0-9_-]{1,32}");
+
+    private static final ClientHandler[] NO_MEMBERS = new ClientHandler[0];
+
+    private final Map<String, ClientRegistry> rooms = new ConcurrentHashMap<>();
+
+    /** Lower-cases the name; returns null if it is not a valid room name. */
+    public static String normalize(String name) {
+        String room = name.trim().toLowerCase(Locale.ROOT);
+        if (room.startsWith("#")) room = room.substring(1);
+        return ROOM_NAME.matcher(room).matches() ? room : null;
+    }
+
+    public void join(String room, ClientHandler client) {
+        rooms.compute(room, (name, members) -> {
+            if (members == null) members = new ClientRegistry();
+            members.add(client);
+            return members;
+        });
+    }
+
+    public void leave(String room, ClientHandler client) {
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(client);
+            return members.size() == 0 ? null : members;
+        });
+    }
+
+    public ClientHandler[] members(String room) {
+        ClientRegistry members = rooms.get(room);
+        return members == null ? NO_MEMBERS : members.snapshot();
+    }
+
+    /** Room name to member count, sorted by name. */
+    public Map<String, Integer> list() {
+        Map<String, Integer> result = new TreeMap<>();
+        rooms.forEach((name, members) -> result.put(name, members.size()));
+        return result;
+    }
+}
@@ -0,0 +1,473 @@
+import java.io.ByteArrayOutputStream;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Inverted index over the {@link MessageStore}, behind /search. A background indexer
+ * follows the store in id order, so chat threads only pay for waking it up. Each
+ * message is indexed under its lower-cased words, its sender ({@code @user}) and its
+ * room ({@code #room}).
+ *
+ * New messages go into a small in-memory segment. When it fills it is sealed into a
+ * segment whose posting lists are delta- and varint-compressed, and runs of
+ * {@link #MERGE_FACTOR} sealed segments of similar size are merged into one, as in a
+ * log-structured merge tree. Merging happens on the indexer thread; queries only take
+ * a short lock to snapshot the segment list and copy the in-memory postings they need.
+ *
+ * Segments whose messages have all been retired by the store are dropped as the
+ * indexer notices, so the index shrinks with the history it covers.
+ *
+ * The index is rebuilt from the store at startup. Tunable: chat.search.segmentMessages.
+ */
+public class SearchIndex {
+    private static final int SEGMENT_DOCS = Math.max(256, ServerConfig.intProperty("chat.search.segmentMessages", 16384));
+    private static final int MERGE_FACTOR = 4;
+    // Segments stop growing at SEGMENT_DOCS * MERGE_FACTOR^MAX_TIER, bounding the cost of one merge
+    private static final int MAX_TIER = 4;
+    private static final int BATCH = 1024;
+    private static final int MAX_TERM_CHARS = 32;
+
+    private final MessageStore store;
+    private final Thread indexer;
+    // Held briefly by the indexer to publish changes and by queries to take a snapshot
+    private final Object lock = new Object();
+    private LiveSegment live = new LiveSegment();
+    private volatile Segment[] sealed = new Segment[0];
+    private volatile long indexedUpTo;
+
+    public SearchIndex(MessageStore store) {
+        this.store = store;
+        this.indexer = new Thread(this::run, "search-indexer");
+        indexer.setDaemon(true);
+    }
+
+    /** Starts indexing, beginning with everything already in the store. */
+    public void start() {
+        indexer.start();
+    }
+
+    /** Called after a message is appended to the store; wakes the indexer. */
+    public void messageAppended() {
+        LockSupport.unpark(indexer);
+    }
+
+    /** Highest message id that is searchable. */
+    public long getIndexedUpTo() {
+        return indexedUpTo;
+    }
+
+    /** Matching messages posted in one of {@code rooms}, newest first. */
+    public List<MessageStore.StoredMessage> search(Query query, Set<String> rooms, int limit) {
+        List<MessageStore.StoredMessage> results = new ArrayList<>();
+        if (rooms.isEmpty()) return results;
+        List<String> roomTerms = new ArrayList<>(rooms.size());
+        for (String room : rooms) {
+            roomTerms.add("#" + room);
+        }
+        Segment[] segments;
+        Segment recent;
+        synchronized (lock) {
+            segments = sealed;
+            recent = live.copyOf(query.terms, roomTerms);
+        }
+        if (collect(recent, query, roomTerms, limit, results)) return results;
+        for (int s = segments.length - 1; s >= 0; s--) {
+            if (collect(segments[s], query, roomTerms, limit, results)) break;
+        }
+        return results;
+    }
+
+    // True once the limit is reached or the search has gone past the query's time range
+    private boolean collect(Segment segment, Query query, List<String> roomTerms, int limit,
+                            List<MessageStore.StoredMessage> results) {
+        if (segment.docs == 0 || segment.minTime > query.before) return false;
+        if (segment.maxTime < query.after) return true;
+        long[][] lists = new long[query.terms.size() + 1][];
+        for (int i = 0; i < query.terms.size(); i++) {
+            lists[i] = segment.postings(query.terms.get(i));
+            if (lists[i] == null) return false;
+        }
+        // The caller's rooms act as one more term, matched by any of them
+        lists[lists.length - 1] = union(segment, roomTerms);
+        if (lists[lists.length - 1].length == 0) return false;
+        // Walk the rarest term's postings, newest first, probing the others
+        Arrays.sort(lists, Comparator.comparingInt(list -> list.length));
+        long[] rarest = lists[0];
+        candidates:
+        for (int i = rarest.length - 1; i >= 0; i--) {
+            long id = rarest[i];
+            for (int l = 1; l < lists.length; l++) {
+                if (Arrays.binarySearch(lists[l], id) < 0) continue candidates;
+            }
+            MessageStore.StoredMessage message = store.read(id);
+            if (message == null) return true; // retired by the store, as is everything older
+            if (message.getTimestamp() > query.before) continue;
+            if (message.getTimestamp() < query.after) return true;
+            results.add(message);
+            if (results.size() == limit) return true;
+        }
+        return false;
+    }
+
+    private static long[] union(Segment segment, List<String> terms) {
+        LongList union = new LongList();
+        for (String term : terms) {
+            long[] postings = segment.postings(term);
+            if (postings != null) union.addAll(postings);
+        }
+        long[] ids = union.toArray();
+        // Each message is in exactly one room, so there are no duplicates to remove
+        if (terms.size() > 1) Arrays.sort(ids);
+        return ids;
+    }
+
+    private void run() {
+        while (true) {
+            dropRetired();
+            List<MessageStore.StoredMessage> batch = store.since(indexedUpTo, null, BATCH);
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+                continue;
+            }
+            for (MessageStore.StoredMessage message : batch) {
+                index(message);
+            }
+            indexedUpTo = batch.get(batch.size() - 1).getId();
+        }
+    }
+
+    // Indexer thread only
+    private void index(MessageStore.StoredMessage message) {
+        Set<String> terms = new LinkedHashSet<>();
+        String[] line = parseLine(message.getRoom(), message.getText());
+        if (line[0] != null) terms.add("@" + line[0].toLowerCase(Locale.ROOT));
+        terms.add("#" + message.getRoom());
+        tokenize(line[1], terms);
+        synchronized (lock) {
+            live.add(message.getId(), message.getTimestamp(), terms);
+        }
+        if (live.docs >= SEGMENT_DOCS) {
+            // Only this thread writes the live segment, so it can be read here without the lock
+            Segment compressed = CompressedSegment.of(live, live.postings.keySet());
+            synchronized (lock) {
+                sealed = replace(sealed, sealed.length, 0, compressed);
+                live = new LiveSegment();
+            }
+            mergeSegments();
+        }
+    }
+
+    // Indexer thread only. Segments hold consecutive id ranges, oldest first, so the
+    // retired ones are a prefix of the sealed list, then possibly the live segment.
+    private void dropRetired() {
+        long firstId = store.firstId();
+        Segment[] current = sealed;
+        int retired = 0;
+        while (retired < current.length && current[retired].maxId < firstId) retired++;
+        boolean liveRetired = retired == current.length && live.docs > 0 && live.maxId < firstId;
+        if (retired == 0 && !liveRetired) return;
+        synchronized (lock) {
+            sealed = Arrays.copyOfRange(current, retired, current.length);
+            if (liveRetired) live = new LiveSegment();
+        }
+    }
+
+    // Indexer thread only; repeats until no run of similar segments is left
+    private void mergeSegments() {
+        while (true) {
+            Segment[] current = sealed;
+            int start = findMergeRun(current);
+            if (start < 0) return;
+            Segment[] run = Arrays.copyOfRange(current, start, start + MERGE_FACTOR);
+            Segment merged = CompressedSegment.merge(run);
+            synchronized (lock) {
+                sealed = replace(sealed, start, MERGE_FACTOR, merged);
+            }
+        }
+    }
+
+    // Start of the newest MERGE_FACTOR adjacent segments of the same size tier, or -1
+    private static int findMergeRun(Segment[] segments) {
+        for (int end = segments.length; end >= MERGE_FACTOR; end--) {
+            int tier = tier(segments[end - 1]);
+            if (tier >= MAX_TIER) continue;
+            int start = end - MERGE_FACTOR;
+            boolean same = true;
+            for (int i = start; i < end - 1 && same; i++) {
+                same = tier(segments[i]) == tier;
+            }
+            if (same) return start;
+        }
+        return -1;
+    }
+
+    private static int tier(Segment segment) {
+        int tier = 0;
+        for (long size = SEGMENT_DOCS; segment.docs > size; size *= MERGE_FACTOR) tier++;
+        return tier;
+    }
+
+    private static Segment[] replace(Segment[] segments, int start, int count, Segment replacement) {
+        Segment[] updated = new Segment[segments.length - count + 1];
+        System.arraycopy(segments, 0, updated, 0, start);
+        updated[start] = replacement;
+        System.arraycopy(segments, start + count, updated, start + 1, segments.length - start - count);
+        return updated;
+    }
+
+    /**
+     * Splits a stored chat line, {@code [HH:mm:ss] #room user: message}, into sender and
+     * message; the sender is null if the line does not have one.
+     */
+    static String[] parseLine(String room, String line) {
+        int start = 0;
+        if (line.startsWith("[")) {
+            int close = line.indexOf("] ");
+            if (close > 0) start = close + 2;
+        }
+        String tag = "#" + room + " ";
+        if (line.startsWith(tag, start)) start += tag.length();
+        int colon = line.indexOf(": ", start);
+        if (colon <= start) return new String[] {null, line.substring(start)};
+        return new String[] {line.substring(start, colon), line.substring(colon + 2)};
+    }
+
+    static void tokenize(String text, Collection<String> into) {
+        int i = 0;
+        int length = text.length();
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) i++;
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) i++;
+            if (i > start && i - start <= MAX_TERM_CHARS) {
+                into.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    /**
+     * A parsed /search query: words that must all appear, optionally narrowed with
+     * {@code from:<user>}, {@code in:<room>}, {@code after:<when>} and {@code before:<when>},
+     * where a time is a date (yyyy-MM-dd) or an age such as 30m, 2h or 7d.
+     */
+    public static final class Query {
+        private final List<String> terms = new ArrayList<>();
+        private long after = Long.MIN_VALUE;
+        private long before = Long.MAX_VALUE;
+
+        private Query() {}
+
+        public static Query parse(String text) {
+            Query query = new Query();
+            Set<String> terms = new LinkedHashSet<>();
+            for (String part : text.trim().split("\\s+")) {
+                if (part.isEmpty()) continue;
+                String lower = part.toLowerCase(Locale.ROOT);
+                if (lower.startsWith("from:") && lower.length() > 5) {
+                    terms.add("@" + lower.substring(5));
+                } else if (lower.startsWith("in:") && lower.length() > 3) {
+                    String room = RoomDirectory.normalize(part.substring(3));
+                    if (room == null) throw new IllegalArgumentException("Invalid room " + part.substring(3) + ".");
+                    terms.add("#" + room);
+                } else if (lower.startsWith("after:")) {
+                    query.after = parseTime(part.substring(6));
+                } else if (lower.startsWith("before:")) {
+                    query.before = parseTime(part.substring(7));
+                } else {
+                    tokenize(part, terms);
+                }
+            }
+            if (terms.isEmpty()) throw new IllegalArgumentException("Nothing to search for.");
+            query.terms.addAll(terms);
+            return query;
+        }
+
+        private static long parseTime(String value) {
+            if (value.length() > 1) {
+                char unit = Character.toLowerCase(value.charAt(value.length() - 1));
+                TimeUnit timeUnit = unit == 'm' ? TimeUnit.MINUTES : unit == 'h' ? TimeUnit.HOURS : unit == 'd' ? TimeUnit.DAYS : null;
+                if (timeUnit != null) {
+                    try {
+                        return System.currentTimeMillis() - timeUnit.toMillis(Long.parseLong(value.substring(0, value.length() - 1)));
+                    } catch (NumberFormatException ignored) {}
+                }
+            }
+            try {
+                return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid time " + value + ".");
+            }
+        }
+    }
+
+    private abstract static class Segment {
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        long maxId;
+        int docs;
+
+        /** Ids containing the term, ascending; null if none. */
+        abstract long[] postings(String term);
+    }
+
+    // Indexer thread only, apart from copyOf under the lock
+    private static final class LiveSegment extends Segment {
+        final Map<String, LongList> postings = new HashMap<>();
+
+        void add(long id, long timestamp, Set<String> terms) {
+            for (String term : terms) {
+                postings.computeIfAbsent(term, t -> new LongList()).add(id);
+            }
+            minTime = Math.min(minTime, timestamp);
+            maxTime = Math.max(maxTime, timestamp);
+            maxId = id;
+            docs++;
+        }
+
+        @Override
+        long[] postings(String term) {
+            LongList list = postings.get(term);
+            return list == null ? null : list.toArray();
+        }
+
+        // A frozen copy of just the postings a query needs
+        LiveSegment copyOf(List<String> terms, List<String> roomTerms) {
+            LiveSegment copy = new LiveSegment();
+            for (String term : terms) {
+                LongList list = postings.get(term);
+                if (list != null) copy.postings.put(term, list.copy());
+            }
+            for (String term : roomTerms) {
+                LongList list = postings.get(term);
+                if (list != null) copy.postings.putIfAbsent(term, list.copy());
+            }
+            copy.minTime = minTime;
+            copy.maxTime = maxTime;
+            copy.maxId = maxId;
+            copy.docs = docs;
+            return copy;
+        }
+    }
+
+    // Immutable once built: each posting list is a count, then gaps between ids, as varints
+    private static final class CompressedSegment extends Segment {
+        final Map<String, byte[]> postings;
+
+        private CompressedSegment(Map<String, byte[]> postings) {
+            this.postings = postings;
+        }
+
+        static CompressedSegment of(Segment source, Collection<String> terms) {
+            Map<String, byte[]> encoded = new HashMap<>(terms.size() * 2);
+            for (String term : terms) {
+                encoded.put(term, encode(source.postings(term)));
+            }
+            CompressedSegment segment = new CompressedSegment(encoded);
+            segment.minTime = source.minTime;
+            segment.maxTime = source.maxTime;
+            segment.maxId = source.maxId;
+            segment.docs = source.docs;
+            return segment;
+        }
+
+        // Segments hold consecutive id ranges, oldest first, so postings simply concatenate
+        static CompressedSegment merge(Segment[] run) {
+            LiveSegment union = new LiveSegment();
+            for (Segment segment : run) {
+                for (String term : ((CompressedSegment) segment).postings.keySet()) {
+                    union.postings.computeIfAbsent(term, t -> new LongList()).addAll(segment.postings(term));
+                }
+                union.minTime = Math.min(union.minTime, segment.minTime);
+                union.maxTime = Math.max(union.maxTime, segment.maxTime);
+                union.maxId = Math.max(union.maxId, segment.maxId);
+                union.docs += segment.docs;
+            }
+            return of(union, union.postings.keySet());
+        }
+
+        @Override
+        long[] postings(String term) {
+            byte[] bytes = postings.get(term);
+            return bytes == null ? null : decode(bytes);
+        }
+
+        private static byte[] encode(long[] ids) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(ids.length + 8);
+            writeVarLong(out, ids.length);
+            long previous = 0;
+            for (long id : ids) {
+                writeVarLong(out, id - previous);
+                previous = id;
+            }
+            return out.toByteArray();
+        }
+
+        private static long[] decode(byte[] bytes) {
+            int[] position = {0};
+            long[] ids = new long[(int) readVarLong(bytes, position)];
+            long previous = 0;
+            for (int i = 0; i < ids.length; i++) {
+                previous += readVarLong(bytes, position);
+                ids[i] = previous;
+            }
+            return ids;
+        }
+
+        private static void writeVarLong(ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        private static long readVarLong(byte[] bytes, int[] position) {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[position[0]++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+        }
+    }
+
+    private static final class LongList {
+        long[] values = new long[4];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        void addAll(long[] more) {
+            if (size + more.length > values.length) values = Arrays.copyOf(values, Math.max(size * 2, size + more.length));
+            System.arraycopy(more, 0, values, size, more.length);
+            size += more.length;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        LongList copy() {
+            LongList copy = new LongList();
+            copy.values = toArray();
+            copy.size = size;
+            return copy;
+        }
+    }
+}
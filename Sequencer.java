@@ -0,0 +1,240 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Puts every broadcast into one total order. A handler publishing a message claims the
+ * next sequence number with a single atomic increment and writes the message into that
+ * number's slot of a fixed ring; no lock is taken. Fan-out consumers, one thread each,
+ * walk the ring in sequence order and queue each message for its recipients, so every
+ * client sees messages in the same order whichever threads published them. A consumer
+ * that finds several messages ready delivers the whole run before it looks again.
+ *
+ * With more than one consumer, each owns a fixed share of the clients and every consumer
+ * walks the whole ring; a client's messages therefore always come from the same thread,
+ * in sequence order. A publisher that would overwrite a slot some consumer has not yet
+ * delivered waits for it.
+ *
+ * Delivered messages stay in the ring until it wraps round, so it doubles as the buffer
+ * that a client reconnecting after a blip is resent what it missed from. Sequence numbers
+ * start from the wall clock at startup (milliseconds times 1000), so they keep rising
+ * across restarts; a client resuming against a restarted server asks for numbers older
+ * than anything held, and is told there is a gap.
+ */
+public class Sequencer {
+    // Runs longer than this are split, so the ring's gate moves on during a burst
+    private static final int MAX_BATCH = 256;
+    private static final long PUBLISH_WAIT_NANOS = 50_000;
+
+    /**
+     * A published message; immutable, so a slot is read safely while it is being reused.
+     * It names its sender rather than holding the handler, so a full ring keeps no
+     * disconnected client's socket or queues reachable.
+     */
+    private static final class Entry {
+        final long sequence;
+        final String room;
+        final Frame frame;
+        final String origin;
+        final long publishedNanos;
+
+        Entry(long sequence, String room, Frame frame, ClientHandler sender, long publishedNanos) {
+            this.sequence = sequence;
+            this.room = room;
+            this.frame = frame;
+            this.origin = sender == null ? null : sender.getUsername();
+            this.publishedNanos = publishedNanos;
+        }
+    }
+
+    private final ChatServer server;
+    private final AtomicReferenceArray<Entry> ring;
+    private final int mask;
+    private final long firstSequence = System.currentTimeMillis() * 1000 + 1;
+    private final AtomicLong next = new AtomicLong(firstSequence);
+    private final Consumer[] consumers;
+    // The lowest sequence every consumer has delivered, as last computed by a publisher
+    private volatile long gate = firstSequence - 1;
+    private final LongAdder publisherWaits = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedMessages = new LongAdder();
+
+    /** {@code capacity} is rounded up to a power of two. */
+    public Sequencer(ChatServer server, int capacity, int consumerCount) {
+        this.server = server;
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.consumers = new Consumer[Math.max(1, consumerCount)];
+        for (int i = 0; i < consumers.length; i++) {
+            consumers[i] = new Consumer(i);
+        }
+    }
+
+    public void start() {
+        for (Consumer consumer : consumers) {
+            consumer.thread.start();
+        }
+    }
+
+    /**
+     * Numbers a message for {@code room}, or for everyone if it is null, and queues it
+     * for delivery to everyone there but {@code sender}. Like the live delivery, a replay
+     * to a resuming client never sends it its own messages.
+     */
+    public Frame publish(String room, byte type, String text, ClientHandler sender) {
+        long sequence = next.getAndIncrement();
+        awaitSlot(sequence);
+        Frame frame = Frame.sequenced(sequence, type, text);
+        ring.set(index(sequence), new Entry(sequence, room, frame, sender, System.nanoTime()));
+        for (Consumer consumer : consumers) {
+            if (consumer.sleeping) LockSupport.unpark(consumer.thread);
+        }
+        return frame;
+    }
+
+    // The slot still holds the message one lap back until every consumer is past it
+    private void awaitSlot(long sequence) {
+        long wrapPoint = sequence - ring.length();
+        if (wrapPoint <= gate) return;
+        boolean waited = false;
+        while (wrapPoint > (gate = delivered())) {
+            waited = true;
+            LockSupport.parkNanos(PUBLISH_WAIT_NANOS);
+        }
+        if (waited) publisherWaits.increment();
+    }
+
+    private long delivered() {
+        long min = Long.MAX_VALUE;
+        for (Consumer consumer : consumers) {
+            min = Math.min(min, consumer.delivered);
+        }
+        return min;
+    }
+
+    private int index(long sequence) {
+        return (int) sequence & mask;
+    }
+
+    /**
+     * Messages in {@code rooms} numbered after {@code after}, oldest first and leaving out
+     * those originating from {@code username}; null if some of them have already been
+     * overwritten or were sent before this server started. It stops at the first number
+     * not yet published: that message and everything after it are still to be delivered,
+     * and reach the client live if it is already in the room.
+     */
+    public List<Frame> since(long after, Set<String> rooms, String username) {
+        if (after + 1 < firstSequence) return null;
+        List<Frame> missed = new ArrayList<>();
+        for (long sequence = after + 1; ; sequence++) {
+            Entry entry = ring.get(index(sequence));
+            if (entry == null || entry.sequence < sequence) return missed;
+            if (entry.sequence > sequence) return null;
+            if (entry.room != null && rooms.contains(entry.room)
+                    && (username == null || !username.equals(entry.origin))) {
+                missed.add(entry.frame);
+            }
+        }
+    }
+
+    /** Numbers handed out so far. */
+    public long getPublished() {
+        return next.get() - firstSequence;
+    }
+
+    /** Messages published but not yet delivered by the slowest consumer. */
+    public long getBacklog() {
+        return Math.max(0, next.get() - 1 - delivered());
+    }
+
+    /** Times a publisher found the ring full and had to wait for the consumers. */
+    public long getPublisherWaits() {
+        return publisherWaits.sum();
+    }
+
+    /** Messages delivered per run a consumer found ready, on average. */
+    public double averageBatchSize() {
+        long runs = batches.sum();
+        return runs == 0 ? 0 : (double) batchedMessages.sum() / runs;
+    }
+
+    public int getConsumerCount() {
+        return consumers.length;
+    }
+
+    private final class Consumer implements Runnable {
+        private final int shard;
+        private final Thread thread;
+        // Every message up to this one has been queued for this consumer's clients
+        private volatile long delivered = firstSequence - 1;
+        private volatile boolean sleeping;
+
+        Consumer(int shard) {
+            this.shard = shard;
+            this.thread = new Thread(this, "chat-sequencer-" + shard);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long sequence = delivered + 1;
+            while (true) {
+                Entry entry = published(sequence);
+                if (entry == null) {
+                    await(sequence);
+                    continue;
+                }
+                int run = 0;
+                do {
+                    deliver(entry);
+                    sequence++;
+                    run++;
+                } while (run < MAX_BATCH && (entry = published(sequence)) != null);
+                delivered = sequence - 1;
+                if (shard == 0) {
+                    batches.increment();
+                    batchedMessages.add(run);
+                }
+            }
+        }
+
+        private Entry published(long sequence) {
+            Entry entry = ring.get(index(sequence));
+            return entry != null && entry.sequence == sequence ? entry : null;
+        }
+
+        // Publishers check sleeping after writing the slot, so one side always sees the other
+        private void await(long sequence) {
+            sleeping = true;
+            if (published(sequence) == null) LockSupport.park(this);
+            sleeping = false;
+        }
+
+        private void deliver(Entry entry) {
+            ClientHandler[] recipients = entry.room == null
+                    ? server.clientSnapshot() : server.getRooms().members(entry.room);
+            for (ClientHandler client : recipients) {
+                if (!isOrigin(client, entry) && client.isConnected() && owns(client)) {
+                    client.sendFrame(entry.frame);
+                }
+            }
+            // Publish to queued, as seen by the first consumer's share of clients
+            if (shard == 0) server.getMetrics().broadcastQueued(System.nanoTime() - entry.publishedNanos);
+        }
+
+        // A client is never sent its own messages, whichever of its connections sent them
+        private boolean isOrigin(ClientHandler client, Entry entry) {
+            return entry.origin != null && entry.origin.equals(client.getUsername());
+        }
+
+        private boolean owns(ClientHandler client) {
+            return consumers.length == 1
+                    || (System.identityHashCode(client) & Integer.MAX_VALUE) % consumers.length == shard;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Startup options for {@link ChatServer}. Values come from system properties so
+ * the usual {@code java ChatServer <port>} command line keeps working, e.g.
+ * {@code java -Dchat.engine=nio -Dchat.nio.eventLoops=4 ChatServer 5000}.
+ */
+public class ServerConfig {
+
+    public enum Engine { BLOCKING, NIO }
+
+    /** How the blocking engine runs each ClientHandler. */
+    public enum HandlerExecutor { PLATFORM, VIRTUAL, FIXED }
+
+    private Engine engine = Engine.BLOCKING;
+    private int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private HandlerExecutor handlerExecutor = HandlerExecutor.PLATFORM;
+    private int handlerThreads = 256;
+    private int outboundCapacity = 1024;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    private int lingerMicros = 0;
+    private int batchBytes = 64 * 1024;
+    private RateLimiter.Policy ratePolicy = RateLimiter.Policy.THROTTLE;
+    private int messagesPerSecond = 20;
+    private int burstMessages = 40;
+    private int bytesPerSecond = 256 * 1024;
+    private int burstBytes = 1024 * 1024;
+    private int fanoutPerSecond = 500_000;
+    private Set<String> admins = Collections.emptySet();
+    private String metricsFile = "server_metrics.txt";
+    private int metricsSnapshotSeconds = 60;
+    private boolean echoMessages = true;
+    private int heartbeatIntervalSeconds = 30;
+    private int heartbeatTimeoutSeconds = 90;
+    private int idleTimeoutMinutes = 0;
+    private int resumeBufferMessages = 4096;
+    private int sequencerConsumers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int resumeGraceSeconds = 300;
+    private String fileDir = "transfers";
+    private long fileMaxBytes = 1L << 30;
+    private int fileWindowBytes = 256 * 1024;
+    private boolean tlsEnabled = false;
+    private String tlsKeystore = "chat.p12";
+    private String tlsKeystorePassword = "";
+    private int tlsSessionCacheSize = 20_000;
+    private int tlsSessionTimeoutSeconds = 24 * 60 * 60;
+    private boolean tlsSessionTickets = true;
+    private int tlsHandshakeThreads = Runtime.getRuntime().availableProcessors();
+    private int tlsHandshakeTimeoutSeconds = 10;
+    private int acceptBacklog = 1024;
+    private boolean tcpNoDelay = true;
+    private int sendBufferBytes = 0;
+    private int receiveBufferBytes = 0;
+    private int maxConnections = 50_000;
+    private int connectionsPerSecond = 1000;
+    private int connectionBurst = 2000;
+    private int connectionsPerAddressPerSecond = 20;
+    private int connectionBurstPerAddress = 50;
+    private int maxConnectionsPerAddress = 0;
+    private boolean limitLoopback = false;
+
+    public static ServerConfig defaults() {
+        return new ServerConfig();
+    }
+
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.engine = enumProperty("chat.engine", Engine.class, config.engine);
+        config.eventLoops = Math.max(1, intProperty("chat.nio.eventLoops", config.eventLoops));
+        config.handlerExecutor = enumProperty("chat.executor", HandlerExecutor.class, config.handlerExecutor);
+        config.handlerThreads = Math.max(2, intProperty("chat.executor.threads", config.handlerThreads));
+        config.outboundCapacity = Math.max(1, intProperty("chat.outbound.capacity", config.outboundCapacity));
+        config.overflowPolicy = enumProperty("chat.outbound.overflow", OutboundQueue.OverflowPolicy.class, config.overflowPolicy);
+        config.lingerMicros = Math.max(0, intProperty("chat.outbound.lingerMicros", config.lingerMicros));
+        config.batchBytes = Math.max(1024, intProperty("chat.outbound.batchBytes", config.batchBytes));
+        config.ratePolicy = enumProperty("chat.rate.policy", RateLimiter.Policy.class, config.ratePolicy);
+        config.messagesPerSecond = intProperty("chat.rate.messagesPerSecond", config.messagesPerSecond);
+        config.burstMessages = Math.max(1, intProperty("chat.rate.burstMessages", config.burstMessages));
+        config.bytesPerSecond = intProperty("chat.rate.bytesPerSecond", config.bytesPerSecond);
+        config.burstBytes = Math.max(1, intProperty("chat.rate.burstBytes", config.burstBytes));
+        config.fanoutPerSecond = intProperty("chat.rate.fanoutPerSecond", config.fanoutPerSecond);
+        config.admins = Arrays.stream(System.getProperty("chat.admins", "").split(","))
+                .map(String::trim).filter(a -> !a.isEmpty()).collect(Collectors.toSet());
+        config.metricsFile = System.getProperty("chat.metrics.file", config.metricsFile);
+        config.metricsSnapshotSeconds = intProperty("chat.metrics.snapshotSeconds", config.metricsSnapshotSeconds);
+        config.echoMessages = Boolean.parseBoolean(System.getProperty("chat.console.echoMessages", String.valueOf(config.echoMessages)));
+        config.heartbeatIntervalSeconds = Math.max(0, intProperty("chat.heartbeat.intervalSeconds", config.heartbeatIntervalSeconds));
+        config.heartbeatTimeoutSeconds = Math.max(1, intProperty("chat.heartbeat.timeoutSeconds", config.heartbeatTimeoutSeconds));
+        config.idleTimeoutMinutes = Math.max(0, intProperty("chat.idle.timeoutMinutes", config.idleTimeoutMinutes));
+        config.resumeBufferMessages = Math.max(1, intProperty("chat.resume.bufferMessages", config.resumeBufferMessages));
+        config.resumeGraceSeconds = Math.max(0, intProperty("chat.resume.graceSeconds", config.resumeGraceSeconds));
+        config.sequencerConsumers = Math.max(1, intProperty("chat.sequencer.consumers", config.sequencerConsumers));
+        config.fileDir = System.getProperty("chat.file.dir", config.fileDir);
+        config.fileMaxBytes = Math.max(0, intProperty("chat.file.maxMegabytes", (int) (config.fileMaxBytes >> 20))) * 1024L * 1024;
+        config.fileWindowBytes = Math.max(FileTransfer.CHUNK_BYTES, intProperty("chat.file.windowBytes", config.fileWindowBytes));
+        config.tlsEnabled = Boolean.parseBoolean(System.getProperty("chat.tls.enabled", String.valueOf(config.tlsEnabled)));
+        config.tlsKeystore = System.getProperty("chat.tls.keystore", config.tlsKeystore);
+        config.tlsKeystorePassword = System.getProperty("chat.tls.keystorePassword", config.tlsKeystorePassword);
+        config.tlsSessionCacheSize = Math.max(0, intProperty("chat.tls.sessionCacheSize", config.tlsSessionCacheSize));
+        config.tlsSessionTimeoutSeconds = Math.max(0, intProperty("chat.tls.sessionTimeoutSeconds", config.tlsSessionTimeoutSeconds));
+        config.tlsSessionTickets = Boolean.parseBoolean(System.getProperty("chat.tls.sessionTickets", String.valueOf(config.tlsSessionTickets)));
+        config.tlsHandshakeThreads = Math.max(1, intProperty("chat.tls.handshakeThreads", config.tlsHandshakeThreads));
+        config.tlsHandshakeTimeoutSeconds = Math.max(1, intProperty("chat.tls.handshakeTimeoutSeconds", config.tlsHandshakeTimeoutSeconds));
+        config.acceptBacklog = Math.max(1, intProperty("chat.accept.backlog", config.acceptBacklog));
+        config.tcpNoDelay = Boolean.parseBoolean(System.getProperty("chat.socket.tcpNoDelay", String.valueOf(config.tcpNoDelay)));
+        config.sendBufferBytes = Math.max(0, intProperty("chat.socket.sendBufferBytes", config.sendBufferBytes));
+        config.receiveBufferBytes = Math.max(0, intProperty("chat.socket.receiveBufferBytes", config.receiveBufferBytes));
+        config.maxConnections = Math.max(0, intProperty("chat.accept.maxConnections", config.maxConnections));
+        config.connectionsPerSecond = Math.max(0, intProperty("chat.accept.connectionsPerSecond", config.connectionsPerSecond));
+        config.connectionBurst = Math.max(1, intProperty("chat.accept.burst", config.connectionBurst));
+        config.connectionsPerAddressPerSecond = Math.max(0, intProperty("chat.accept.perAddressPerSecond", config.connectionsPerAddressPerSecond));
+        config.connectionBurstPerAddress = Math.max(1, intProperty("chat.accept.perAddressBurst", config.connectionBurstPerAddress));
+        config.maxConnectionsPerAddress = Math.max(0, intProperty("chat.accept.maxPerAddress", config.maxConnectionsPerAddress));
+        config.limitLoopback = Boolean.parseBoolean(System.getProperty("chat.accept.limitLoopback", String.valueOf(config.limitLoopback)));
+        return config;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public HandlerExecutor getHandlerExecutor() {
+        return handlerExecutor;
+    }
+
+    /**
+     * Threads in the FIXED pool. Each blocking client holds two of them, its reader and its
+     * writer, for as long as it is connected.
+     */
+    public int getHandlerThreads() {
+        return handlerThreads;
+    }
+
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * How long a writer that has emptied a client's queue waits for more messages before
+     * flushing the batch. Zero flushes as soon as the queue is empty.
+     */
+    public int getLingerMicros() {
+        return lingerMicros;
+    }
+
+    /** A batch is flushed once it holds this many bytes, whatever the linger window. */
+    public int getBatchBytes() {
+        return batchBytes;
+    }
+
+    public RateLimiter.Policy getRatePolicy() {
+        return ratePolicy;
+    }
+
+    /** Per-connection inbound message limit; zero or less disables it. */
+    public int getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public int getBurstMessages() {
+        return burstMessages;
+    }
+
+    /** Per-connection inbound byte limit; zero or less disables it. */
+    public int getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public int getBurstBytes() {
+        return burstBytes;
+    }
+
+    /** Server-wide cap on messages queued to recipients by broadcasts; zero or less disables it. */
+    public int getFanoutPerSecond() {
+        return fanoutPerSecond;
+    }
+
+    /** Accounts (login emails) allowed to use admin commands such as /stats. */
+    public Set<String> getAdmins() {
+        return admins;
+    }
+
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
+    /** How often the metrics snapshot file is rewritten; zero or less disables it. */
+    public int getMetricsSnapshotSeconds() {
+        return metricsSnapshotSeconds;
+    }
+
+    /** Whether chat messages are printed to stdout as well as logged. */
+    public boolean isEchoMessages() {
+        return echoMessages;
+    }
+
+    /** How long a version 2 connection may be silent before it is pinged; 0 disables heartbeats. */
+    public int getHeartbeatIntervalSeconds() {
+        return heartbeatIntervalSeconds;
+    }
+
+    /**
+     * How long a connection may go without sending anything, pongs included, before it is
+     * dropped as dead. Applies to version 2 connections, and to every connection until it
+     * has authenticated.
+     */
+    public int getHeartbeatTimeoutSeconds() {
+        return heartbeatTimeoutSeconds;
+    }
+
+    /** How long a client may go without chatting or sending a command; 0 means forever. */
+    public int getIdleTimeoutMinutes() {
+        return idleTimeoutMinutes;
+    }
+
+    /**
+     * Size of the {@link Sequencer} ring, rounded up to a power of two: how many recent
+     * messages are kept for clients that reconnect, and how far publishers may run ahead
+     * of delivery.
+     */
+    public int getResumeBufferMessages() {
+        return resumeBufferMessages;
+    }
+
+    /** Threads delivering sequenced messages, each to its own share of the clients. */
+    public int getSequencerConsumers() {
+        return sequencerConsumers;
+    }
+
+    /** How long a dropped client's rooms are remembered for it to resume into. */
+    public int getResumeGraceSeconds() {
+        return resumeGraceSeconds;
+    }
+
+    /** Where uploads are spooled until every recipient has been sent them. */
+    public String getFileDir() {
+        return fileDir;
+    }
+
+    /** Largest file /send accepts; 0 disables file transfer. */
+    public long getFileMaxBytes() {
+        return fileMaxBytes;
+    }
+
+    /**
+     * How far ahead of the server's disk writes an uploading client may send, per transfer.
+     * Never less than one chunk.
+     */
+    public int getFileWindowBytes() {
+        return fileWindowBytes;
+    }
+
+    /** Whether clients must connect over TLS; see {@link TlsSupport}. */
+    public boolean isTlsEnabled() {
+        return tlsEnabled;
+    }
+
+    /** PKCS12 (or .jks) keystore holding the server's key and certificate. */
+    public String getTlsKeystore() {
+        return tlsKeystore;
+    }
+
+    public String getTlsKeystorePassword() {
+        return tlsKeystorePassword;
+    }
+
+    /** Sessions kept for resumption; 0 means no limit. */
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    /** How long a session can be resumed for; 0 means no limit. */
+    public int getTlsSessionTimeoutSeconds() {
+        return tlsSessionTimeoutSeconds;
+    }
+
+    /** Whether resumable sessions are handed to clients as tickets instead of only cached. */
+    public boolean isTlsSessionTickets() {
+        return tlsSessionTickets;
+    }
+
+    /** Threads running TLS handshakes, so the accept loop never does. */
+    public int getTlsHandshakeThreads() {
+        return tlsHandshakeThreads;
+    }
+
+    /** How long a connection has from being accepted to finishing its handshake. */
+    public int getTlsHandshakeTimeoutSeconds() {
+        return tlsHandshakeTimeoutSeconds;
+    }
+
+    /** Connections the OS may queue before the server accepts them. */
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    /** Whether small frames go out at once rather than waiting to be coalesced by the OS. */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /** SO_SNDBUF for client sockets; 0 leaves the OS default. */
+    public int getSendBufferBytes() {
+        return sendBufferBytes;
+    }
+
+    /** SO_RCVBUF for client sockets, set on the listening socket so it applies from the handshake; 0 leaves the OS default. */
+    public int getReceiveBufferBytes() {
+        return receiveBufferBytes;
+    }
+
+    /**
+     * Open connections beyond which new ones are turned away; 0 means no limit. With the
+     * FIXED executor it is never more than the pool has threads for, so a client the pool
+     * cannot serve is told the server is full instead of waiting for a thread.
+     */
+    public int getMaxConnections() {
+        if (engine != Engine.BLOCKING || handlerExecutor != HandlerExecutor.FIXED) return maxConnections;
+        int poolClients = handlerThreads / 2;
+        return maxConnections > 0 ? Math.min(maxConnections, poolClients) : poolClients;
+    }
+
+    /** New connections admitted per second across all addresses; 0 disables the limit. */
+    public int getConnectionsPerSecond() {
+        return connectionsPerSecond;
+    }
+
+    public int getConnectionBurst() {
+        return connectionBurst;
+    }
+
+    /** New connections admitted per second from one address; 0 disables the limit. */
+    public int getConnectionsPerAddressPerSecond() {
+        return connectionsPerAddressPerSecond;
+    }
+
+    public int getConnectionBurstPerAddress() {
+        return connectionBurstPerAddress;
+    }
+
+    /** Open connections allowed from one address; 0 means no limit. */
+    public int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    /** Whether loopback clients are held to the per-address limits too. */
+    public boolean isLimitLoopback() {
+        return limitLoopback;
+    }
+
+    static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            ExceptionHandler.handleWarning("Invalid value for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static <E extends Enum<E>> E enumProperty(String name, Class<E> type, E defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) return defaultValue;
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            ExceptionHandler.handleWarning("Invalid value for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
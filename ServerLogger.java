@@ -1,20 +1,252 @@
-import java.io.FileWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Asynchronous appender for server_history.txt. Callers only build the line's bytes and
+ * hand them to a bounded ring buffer; a single background writer drains it in batches
+ * into a FileChannel that stays open, and rotates the file by size or age. Lines queued
+ * with echo set are also copied to stdout by the same writer, so no caller ever waits
+ * on the console.
+ *
+ * Tunables (system properties): chat.log.dir, chat.log.bufferSize, chat.log.flushBytes,
+ * chat.log.flushMillis, chat.log.maxBytes, chat.log.rotateMinutes, chat.log.fsync and
+ * chat.log.whenFull (block, drop or sync).
+ */
 public class ServerLogger {
+
+    public enum FullPolicy { BLOCK, DROP, SYNC }
+
+    private static final Path LOG_DIR = Paths.get(System.getProperty("chat.log.dir", "."));
     private static final String LOG_FILE = "server_history.txt";
-    private static final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final DateTimeFormatter rotationSuffix = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private static final int FLUSH_BYTES = Math.max(1024, ServerConfig.intProperty("chat.log.flushBytes", 64 * 1024));
+    private static final long FLUSH_NANOS = TimeUnit.MILLISECONDS.toNanos(ServerConfig.intProperty("chat.log.flushMillis", 200));
+    private static final long MAX_BYTES = ServerConfig.intProperty("chat.log.maxBytes", 16 * 1024 * 1024);
+    private static final long ROTATE_MILLIS = TimeUnit.MINUTES.toMillis(ServerConfig.intProperty("chat.log.rotateMinutes", 0));
+    private static final boolean FSYNC = Boolean.getBoolean("chat.log.fsync");
+    private static final FullPolicy WHEN_FULL = ServerConfig.enumProperty("chat.log.whenFull", FullPolicy.class, FullPolicy.BLOCK);
+
+    private static final BlockingQueue<byte[]> queue =
+            new ArrayBlockingQueue<>(Math.max(16, ServerConfig.intProperty("chat.log.bufferSize", 8192)));
+    // Lines to copy to stdout; each is also in queue, whose arrival wakes the writer
+    private static final BlockingQueue<byte[]> echoQueue = new ArrayBlockingQueue<>(queue.remainingCapacity());
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final LatencyHistogram writeLatency = new LatencyHistogram();
+    // Guards the channel: the writer thread, sync fallback writes and rotation
+    private static final ReentrantLock fileLock = new ReentrantLock();
+    private static FileChannel channel;
+    private static long fileSize;
+    private static long openedAt;
+    private static volatile boolean running = true;
+    private static final Thread writer = new Thread(ServerLogger::writeLoop, "server-logger");
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ServerLogger::shutdown, "server-logger-shutdown"));
+    }
+
+    public static void log(String message) {
+        append(line(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** A complete log line, timestamp and line separator included, around UTF-8 text. */
+    public static byte[] line(byte[] utf8Message) {
+        byte[] prefix = CachedClock.logPrefix();
+        byte[] line = new byte[prefix.length + utf8Message.length + LINE_SEPARATOR.length];
+        System.arraycopy(prefix, 0, line, 0, prefix.length);
+        System.arraycopy(utf8Message, 0, line, prefix.length, utf8Message.length);
+        System.arraycopy(LINE_SEPARATOR, 0, line, prefix.length + utf8Message.length, LINE_SEPARATOR.length);
+        return line;
+    }
+
+    /**
+     * Queues a line built by {@link #line}, copying it to stdout too if {@code echo} is set.
+     * The console copy is best effort: it is skipped when stdout falls behind.
+     */
+    public static void append(byte[] line, boolean echo) {
+        if (echo) echoQueue.offer(line);
+        append(line);
+    }
+
+    /** Queues a line built by {@link #line}; the array must not be modified afterwards. */
+    public static void append(byte[] line) {
+        if (queue.offer(line)) return;
+        switch (WHEN_FULL) {
+            case DROP:
+                dropped.incrementAndGet();
+                break;
+            case SYNC:
+                writeNow(line);
+                break;
+            default:
+                try {
+                    queue.put(line);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.incrementAndGet();
+                }
+        }
+    }
+
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** Time spent in each write to the log file, including rotation and fsync. */
+    public static LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    private static void writeLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(FLUSH_BYTES);
+        List<byte[]> batch = new ArrayList<>();
+        ByteArrayOutputStream echo = new ByteArrayOutputStream();
+        long firstPending = 0;
+        while (running || !queue.isEmpty()) {
+            try {
+                long wait = buffer.position() == 0 ? FLUSH_NANOS : FLUSH_NANOS - (System.nanoTime() - firstPending);
+                byte[] first = queue.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    if (buffer.position() == 0) firstPending = System.nanoTime();
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    long lost = dropped.getAndSet(0);
+                    if (lost > 0) {
+                        batch.add(line(("[Logger] " + lost + " lines dropped, buffer full").getBytes(StandardCharsets.UTF_8)));
+                    }
+                    for (byte[] line : batch) {
+                        append(buffer, line);
+                    }
+                    batch.clear();
+                    echo(echo);
+                }
+                if (buffer.position() > 0 && (buffer.position() >= FLUSH_BYTES
+                        || System.nanoTime() - firstPending >= FLUSH_NANOS)) {
+                    flush(buffer);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        flush(buffer);
+        echo(echo);
+    }
+
+    private static void echo(ByteArrayOutputStream out) {
+        byte[] line;
+        while ((line = echoQueue.poll()) != null) {
+            out.write(line, 0, line.length);
+        }
+        if (out.size() == 0) return;
+        System.out.write(out.toByteArray(), 0, out.size());
+        System.out.flush();
+        out.reset();
+    }
+
+    private static void append(ByteBuffer buffer, byte[] bytes) {
+        if (bytes.length > buffer.remaining()) flush(buffer);
+        if (bytes.length > buffer.capacity()) {
+            write(ByteBuffer.wrap(bytes));
+        } else {
+            buffer.put(bytes);
+        }
+    }
+
+    private static void flush(ByteBuffer buffer) {
+        if (buffer.position() == 0) return;
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    private static void writeNow(byte[] line) {
+        write(ByteBuffer.wrap(line));
+    }
 
-    public static synchronized void log(String message) {
-        try (FileWriter fw = new FileWriter(LOG_FILE, true);
-             PrintWriter pw = new PrintWriter(fw)) {
-            String timeStamp = "[" + dtf.format(LocalDateTime.now()) + "] ";
-            pw.println(timeStamp + message);
+    private static void write(ByteBuffer data) {
+        long start = System.nanoTime();
+        fileLock.lock();
+        try {
+            if (channel == null || shouldRotate()) openChannel();
+            while (data.hasRemaining()) {
+                fileSize += channel.write(data);
+            }
+            if (FSYNC) channel.force(false);
         } catch (IOException e) {
             System.err.println("[Logger Error] Could not write to log file: " + e.getMessage());
+            closeChannel();
+        } finally {
+            fileLock.unlock();
+            writeLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    // Caller must hold fileLock
+    private static boolean shouldRotate() {
+        if (fileSize >= MAX_BYTES && MAX_BYTES > 0) return true;
+        return ROTATE_MILLIS > 0 && System.currentTimeMillis() - openedAt >= ROTATE_MILLIS;
+    }
+
+    // Caller must hold fileLock
+    private static void openChannel() throws IOException {
+        Path path = LOG_DIR.resolve(LOG_FILE);
+        if (channel != null) {
+            closeChannel();
+            if (Files.size(path) > 0) {
+                String suffix = "-" + rotationSuffix.format(LocalDateTime.now());
+                Path rotated = LOG_DIR.resolve(LOG_FILE.replace(".txt", suffix + ".txt"));
+                for (int n = 1; Files.exists(rotated); n++) {
+                    rotated = LOG_DIR.resolve(LOG_FILE.replace(".txt", suffix + "-" + n + ".txt"));
+                }
+                Files.move(path, rotated);
+            }
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+        openedAt = System.currentTimeMillis();
+    }
+
+    // Caller must hold fileLock
+    private static void closeChannel() {
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException ignored) {}
+        channel = null;
+    }
+
+    private static void shutdown() {
+        // No interrupt: it would close the FileChannel under the writer mid-write
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ignored) {}
+        fileLock.lock();
+        try {
+            if (channel != null) channel.force(false);
+        } catch (IOException ignored) {
+        } finally {
+            closeChannel();
+            fileLock.unlock();
         }
     }
 }
@@ -0,0 +1,254 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Server-wide counters and latency histograms. The hot paths (reading a message,
+ * writing a batch, queuing a broadcast) only bump striped counters or a histogram
+ * bucket; rates are derived once a second by {@link #sample()}, and gauges such as
+ * the outbound backlog are computed when a report is asked for.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    private final ChatServer server;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final WriteStats writes = new WriteStats();
+    private final LatencyHistogram fanoutLatency = new LatencyHistogram();
+    private final LongAdder handshakesResumed = new LongAdder();
+    private final LongAdder handshakesFailed = new LongAdder();
+    private final LongAdder historyWriteFailures = new LongAdder();
+    private final LatencyHistogram handshakeLatency = new LatencyHistogram();
+
+    // Per-second rates over the last sample interval, written by sample() only
+    private volatile double acceptRate;
+    private volatile double messagesInRate;
+    private volatile double messagesOutRate;
+    private volatile double bytesInRate;
+    private volatile double bytesOutRate;
+    private volatile double handshakeRate;
+    private long lastSampleNanos = System.nanoTime();
+    private long lastAccepted;
+    private long lastMessagesIn;
+    private long lastMessagesOut;
+    private long lastBytesIn;
+    private long lastBytesOut;
+    private long lastHandshakes;
+
+    public ServerMetrics(ChatServer server) {
+        this.server = server;
+    }
+
+    public void connectionAccepted() {
+        accepted.increment();
+    }
+
+    public void messageReceived(int bytes) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    /** One socket write carrying {@code messages} messages. */
+    public void batchWritten(int messages, long bytes) {
+        if (messages > 0) writes.record(messages);
+        messagesOut.add(messages);
+        bytesOut.add(bytes);
+    }
+
+    public void broadcastQueued(long nanos) {
+        fanoutLatency.record(nanos);
+    }
+
+    /** A TLS handshake that finished in {@code nanos}, abbreviated if it resumed an earlier session. */
+    public void handshakeCompleted(boolean resumed, long nanos) {
+        handshakeLatency.record(nanos);
+        if (resumed) handshakesResumed.increment();
+    }
+
+    public void handshakeFailed() {
+        handshakesFailed.increment();
+    }
+
+    /** A chat message that was delivered but could not be appended to the history. */
+    public void historyWriteFailed() {
+        historyWriteFailures.increment();
+    }
+
+    public WriteStats getWriteStats() {
+        return writes;
+    }
+
+    public synchronized void sample() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastSampleNanos) / 1e9);
+        lastSampleNanos = now;
+        long a = accepted.sum(), mi = messagesIn.sum(), mo = messagesOut.sum(), bi = bytesIn.sum(), bo = bytesOut.sum();
+        acceptRate = (a - lastAccepted) / seconds;
+        messagesInRate = (mi - lastMessagesIn) / seconds;
+        messagesOutRate = (mo - lastMessagesOut) / seconds;
+        bytesInRate = (bi - lastBytesIn) / seconds;
+        bytesOutRate = (bo - lastBytesOut) / seconds;
+        lastAccepted = a;
+        lastMessagesIn = mi;
+        lastMessagesOut = mo;
+        lastBytesIn = bi;
+        lastBytesOut = bo;
+        long h = handshakeLatency.getCount();
+        handshakeRate = (h - lastHandshakes) / seconds;
+        lastHandshakes = h;
+    }
+
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chat:type=ServerMetrics"));
+        } catch (JMException e) {
+            ExceptionHandler.handleWarning("Server metrics not published over JMX: " + e.getMessage());
+        }
+    }
+
+    /** Human-readable summary, one line per area; shared by /stats and the snapshot file. */
+    public List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("Clients: %d connected, %d accepted (%.1f/s)",
+                getConnectedClients(), getAcceptedConnections(), acceptRate));
+        lines.add(String.format("In: %.1f messages/s, %.1f KB/s (%d messages total)",
+                messagesInRate, bytesInRate / 1024, getMessagesIn()));
+        lines.add(String.format("Out: %.1f messages/s, %.1f KB/s (%d messages total, %.1f per write)",
+                messagesOutRate, bytesOutRate / 1024, getMessagesOut(), writes.averageBatchSize()));
+        lines.add(String.format("Broadcast fan-out: p50 %.1fus, p99 %.1fus, p99.9 %.1fus, max %.1fus (%d broadcasts)",
+                getFanoutLatencyP50Micros(), getFanoutLatencyP99Micros(), getFanoutLatencyP999Micros(),
+                getFanoutLatencyMaxMicros(), getBroadcasts()));
+        lines.add(String.format("Sequencer: %d messages, %.1f per delivery run, %d awaiting delivery, %d publisher waits",
+                getSequencedMessages(), getSequencerBatchSize(), getSequencerBacklog(), getSequencerPublisherWaits()));
+        lines.add(String.format("Log writes: p50 %.1fus, p99 %.1fus, p99.9 %.1fus (%d lines dropped, %d history writes failed)",
+                getLogWriteLatencyP50Micros(), getLogWriteLatencyP99Micros(), getLogWriteLatencyP999Micros(),
+                getLogLinesDropped(), getHistoryWriteFailures()));
+        ClientHandler busiest = null;
+        long backlog = 0;
+        for (ClientHandler client : server.clientSnapshot()) {
+            int depth = client.getOutboundDepth();
+            backlog += depth;
+            if (busiest == null || depth > busiest.getOutboundDepth()) busiest = client;
+        }
+        lines.add("Outbound backlog: " + backlog + " queued"
+                + (busiest != null && busiest.getOutboundDepth() > 0
+                        ? ", most for " + busiest.getUsername() + " (" + busiest.getOutboundDepth() + ")" : "")
+                + "; " + getRateLimitedMessages() + " inbound messages rate limited"
+                + "; " + getTimedOutConnections() + " connections timed out");
+        lines.add("Files: " + getFilesDelivered() + " delivered, " + FileTransfer.describeSize(getFileBytesIn())
+                + " received, " + FileTransfer.describeSize(getFileBytesOut()) + " sent");
+        lines.add("Admission: " + getAdmittedConnections() + " open; turned away " + getRejectedFull()
+                + " at the connection limit, " + getRejectedConnectionRate() + " over the connection rate, "
+                + getRejectedPerAddress() + " over a per-address limit");
+        if (server.getConfig().isTlsEnabled()) {
+            lines.add(String.format("TLS: %d handshakes (%.1f/s), %.1f%% resumed, p50 %.1fms, p99 %.1fms (%d failed)",
+                    getTlsHandshakes(), handshakeRate, getTlsResumedPercent(), getTlsHandshakeP50Millis(),
+                    getTlsHandshakeP99Millis(), getTlsHandshakesFailed()));
+        }
+        return lines;
+    }
+
+    /** Replaces {@code file} with the current report. */
+    public void writeSnapshot(String file) {
+        List<String> lines = new ArrayList<>();
+        lines.add("Snapshot taken " + CachedClock.dateTime());
+        lines.addAll(report());
+        Path target = Paths.get(file);
+        Path temp = Paths.get(file + ".tmp");
+        try {
+            Files.write(temp, lines);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            ExceptionHandler.handle("Writing metrics snapshot failed", e);
+        }
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    @Override public int getConnectedClients() { return server.clientSnapshot().length; }
+    @Override public long getAcceptedConnections() { return accepted.sum(); }
+    @Override public double getAcceptsPerSecond() { return acceptRate; }
+
+    @Override public long getMessagesIn() { return messagesIn.sum(); }
+    @Override public long getMessagesOut() { return messagesOut.sum(); }
+    @Override public long getBytesIn() { return bytesIn.sum(); }
+    @Override public long getBytesOut() { return bytesOut.sum(); }
+    @Override public double getMessagesInPerSecond() { return messagesInRate; }
+    @Override public double getMessagesOutPerSecond() { return messagesOutRate; }
+    @Override public double getBytesInPerSecond() { return bytesInRate; }
+    @Override public double getBytesOutPerSecond() { return bytesOutRate; }
+    @Override public double getAverageWriteBatchSize() { return writes.averageBatchSize(); }
+
+    @Override public long getSequencedMessages() { return server.getSequencer().getPublished(); }
+    @Override public double getSequencerBatchSize() { return server.getSequencer().averageBatchSize(); }
+    @Override public long getSequencerBacklog() { return server.getSequencer().getBacklog(); }
+    @Override public long getSequencerPublisherWaits() { return server.getSequencer().getPublisherWaits(); }
+
+    @Override public long getBroadcasts() { return fanoutLatency.getCount(); }
+    @Override public double getFanoutLatencyP50Micros() { return micros(fanoutLatency.percentileNanos(0.50)); }
+    @Override public double getFanoutLatencyP99Micros() { return micros(fanoutLatency.percentileNanos(0.99)); }
+    @Override public double getFanoutLatencyP999Micros() { return micros(fanoutLatency.percentileNanos(0.999)); }
+    @Override public double getFanoutLatencyMaxMicros() { return micros(fanoutLatency.getMaxNanos()); }
+
+    @Override public double getLogWriteLatencyP50Micros() { return micros(ServerLogger.getWriteLatency().percentileNanos(0.50)); }
+    @Override public double getLogWriteLatencyP99Micros() { return micros(ServerLogger.getWriteLatency().percentileNanos(0.99)); }
+    @Override public double getLogWriteLatencyP999Micros() { return micros(ServerLogger.getWriteLatency().percentileNanos(0.999)); }
+    @Override public long getLogLinesDropped() { return ServerLogger.getDroppedCount(); }
+    @Override public long getHistoryWriteFailures() { return historyWriteFailures.sum(); }
+
+    @Override
+    public long getOutboundBacklog() {
+        long backlog = 0;
+        for (ClientHandler client : server.clientSnapshot()) backlog += client.getOutboundDepth();
+        return backlog;
+    }
+
+    @Override
+    public int getMaxOutboundBacklog() {
+        int max = 0;
+        for (ClientHandler client : server.clientSnapshot()) max = Math.max(max, client.getOutboundDepth());
+        return max;
+    }
+
+    @Override public long getRateLimitedMessages() { return server.getRateLimitedCount(); }
+    @Override public long getTimedOutConnections() { return server.getTimedOutCount(); }
+
+    @Override public long getFilesDelivered() { return server.getFileTransfers().getFilesDelivered(); }
+    @Override public long getFileBytesIn() { return server.getFileTransfers().getBytesReceived(); }
+    @Override public long getFileBytesOut() { return server.getFileTransfers().getBytesSent(); }
+
+    @Override public int getAdmittedConnections() { return server.getAdmission().getOpenConnections(); }
+    @Override public long getRejectedFull() { return server.getAdmission().getRejectedFull(); }
+    @Override public long getRejectedConnectionRate() { return server.getAdmission().getRejectedRate(); }
+    @Override public long getRejectedPerAddress() { return server.getAdmission().getRejectedAddress(); }
+
+    @Override public long getTlsHandshakes() { return handshakeLatency.getCount(); }
+    @Override public double getTlsHandshakesPerSecond() { return handshakeRate; }
+    @Override public long getTlsHandshakesResumed() { return handshakesResumed.sum(); }
+    @Override public long getTlsHandshakesFailed() { return handshakesFailed.sum(); }
+    @Override public double getTlsHandshakeP50Millis() { return millis(handshakeLatency.percentileNanos(0.50)); }
+    @Override public double getTlsHandshakeP99Millis() { return millis(handshakeLatency.percentileNanos(0.99)); }
+
+    @Override
+    public double getTlsResumedPercent() {
+        long handshakes = handshakeLatency.getCount();
+        return handshakes == 0 ? 0 : 100.0 * handshakesResumed.sum() / handshakes;
+    }
+}
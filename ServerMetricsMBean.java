@@ -0,0 +1,59 @@
+/**
+ * JMX view of {@link ServerMetrics}, registered as {@code chat:type=ServerMetrics}.
+ * Rates are per second over the last sampling second; latencies are in microseconds,
+ * apart from TLS handshakes, which take milliseconds.
+ */
+public interface ServerMetricsMBean {
+    int getConnectedClients();
+    long getAcceptedConnections();
+    double getAcceptsPerSecond();
+
+    long getMessagesIn();
+    long getMessagesOut();
+    long getBytesIn();
+    long getBytesOut();
+    double getMessagesInPerSecond();
+    double getMessagesOutPerSecond();
+    double getBytesInPerSecond();
+    double getBytesOutPerSecond();
+    double getAverageWriteBatchSize();
+
+    long getSequencedMessages();
+    double getSequencerBatchSize();
+    long getSequencerBacklog();
+    long getSequencerPublisherWaits();
+
+    long getBroadcasts();
+    double getFanoutLatencyP50Micros();
+    double getFanoutLatencyP99Micros();
+    double getFanoutLatencyP999Micros();
+    double getFanoutLatencyMaxMicros();
+
+    double getLogWriteLatencyP50Micros();
+    double getLogWriteLatencyP99Micros();
+    double getLogWriteLatencyP999Micros();
+    long getLogLinesDropped();
+    long getHistoryWriteFailures();
+
+    long getOutboundBacklog();
+    int getMaxOutboundBacklog();
+    long getRateLimitedMessages();
+    long getTimedOutConnections();
+
+    long getFilesDelivered();
+    long getFileBytesIn();
+    long getFileBytesOut();
+
+    int getAdmittedConnections();
+    long getRejectedFull();
+    long getRejectedConnectionRate();
+    long getRejectedPerAddress();
+
+    long getTlsHandshakes();
+    double getTlsHandshakesPerSecond();
+    long getTlsHandshakesResumed();
+    double getTlsResumedPercent();
+    long getTlsHandshakesFailed();
+    double getTlsHandshakeP50Millis();
+    double getTlsHandshakeP99Millis();
+}
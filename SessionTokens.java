@@ -0,0 +1,76 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Stateless, HMAC-signed session tokens of the form {@code <account>.<expiry>.<signature>}.
+ * Verifying one costs a single HMAC, so a reconnect storm skips the credential index
+ * and PBKDF2 entirely. Set chat.auth.tokenSecret to keep tokens valid across restarts.
+ */
+public class SessionTokens {
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec key;
+    private final long ttlSeconds;
+
+    public SessionTokens(byte[] secret, long ttlSeconds) {
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    public static SessionTokens fromSystemProperties() {
+        String configured = System.getProperty("chat.auth.tokenSecret");
+        byte[] secret;
+        if (configured != null && !configured.isEmpty()) {
+            secret = configured.getBytes(StandardCharsets.UTF_8);
+        } else {
+            secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+        }
+        long ttl = TimeUnit.MINUTES.toSeconds(Math.max(1, ServerConfig.intProperty("chat.auth.tokenTtlMinutes", 12 * 60)));
+        return new SessionTokens(secret, ttl);
+    }
+
+    public String issue(String account) {
+        long expiry = System.currentTimeMillis() / 1000 + ttlSeconds;
+        String payload = encode(account.getBytes(StandardCharsets.UTF_8)) + "." + expiry;
+        return payload + "." + encode(sign(payload));
+    }
+
+    /** Returns the account the token was issued to, or null if it is forged, malformed or expired. */
+    public String verify(String token) {
+        int dot = token.lastIndexOf('.');
+        if (dot < 0) return null;
+        String payload = token.substring(0, dot);
+        int expiryDot = payload.indexOf('.');
+        if (expiryDot < 0) return null;
+        try {
+            byte[] signature = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+            if (!MessageDigest.isEqual(signature, sign(payload))) return null;
+            long expiry = Long.parseLong(payload.substring(expiryDot + 1));
+            if (expiry < System.currentTimeMillis() / 1000) return null;
+            return new String(Base64.getUrlDecoder().decode(payload.substring(0, expiryDot)), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private byte[] sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
@@ -0,0 +1,254 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * A {@link SocketChannel} carrying TLS through an {@link SSLEngine}, for the NIO engine.
+ * The handshake runs in blocking mode on the server's handshake pool, before the channel
+ * is registered with an event loop; from then on reads and writes are non-blocking and
+ * behave like the socket's, except that:
+ * <ul>
+ *   <li>a write may have taken bytes it could not yet put on the socket, which
+ *       {@link #hasPendingOutput()} reports and {@link #flush()} retries;</li>
+ *   <li>a read may have taken more off the socket than it returned, so the selector will
+ *       not fire for it again; {@link #hasBufferedInput()} says when to read anyway.</li>
+ * </ul>
+ * Each connection holds three buffers of about one TLS record (16KB) each.
+ */
+public class TlsChannel implements ByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    // Ciphertext read from the socket, in write mode
+    private ByteBuffer netIn;
+    // Ciphertext waiting for the socket, in read mode
+    private ByteBuffer netOut;
+    // Plaintext unwrapped but not yet read, in read mode
+    private ByteBuffer appIn;
+    // The last read ran out of whole records and the socket had no more
+    private boolean starved;
+    private boolean inboundDone;
+
+    public TlsChannel(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.netOut = ByteBuffer.allocate(packetSize).flip();
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize()).flip();
+    }
+
+    /** Runs the whole handshake; the channel must still be in blocking mode. */
+    public void handshake() throws IOException {
+        engine.beginHandshake();
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                case NEED_WRAP: {
+                    SSLEngineResult result = wrap(EMPTY);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        netOut = growReadable(netOut, engine.getSession().getPacketBufferSize());
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("TLS handshake closed");
+                    }
+                    flush();
+                    break;
+                }
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN: {
+                    SSLEngineResult result = unwrap();
+                    switch (result.getStatus()) {
+                        case BUFFER_UNDERFLOW:
+                            if (!netIn.hasRemaining()) netIn = growWritable(netIn, engine.getSession().getPacketBufferSize());
+                            if (channel.read(netIn) < 0) throw new EOFException("connection closed during TLS handshake");
+                            break;
+                        case BUFFER_OVERFLOW:
+                            appIn = growReadable(appIn, engine.getSession().getApplicationBufferSize());
+                            break;
+                        case CLOSED:
+                            throw new SSLException("connection closed during TLS handshake");
+                        default:
+                            break;
+                    }
+                    break;
+                }
+                default:
+                    flush();
+                    return;
+            }
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int total = 0;
+        while (true) {
+            total += drain(dst);
+            if (!dst.hasRemaining()) return total;
+            if (inboundDone) return total > 0 ? total : -1;
+            SSLEngineResult result = unwrap();
+            switch (result.getStatus()) {
+                case OK:
+                    starved = false;
+                    respond(result);
+                    break;
+                case CLOSED:
+                    inboundDone = true;
+                    break;
+                case BUFFER_OVERFLOW:
+                    // appIn is empty here, just too small for the record
+                    appIn = growReadable(appIn, engine.getSession().getApplicationBufferSize());
+                    break;
+                case BUFFER_UNDERFLOW: {
+                    if (!netIn.hasRemaining()) netIn = growWritable(netIn, engine.getSession().getPacketBufferSize());
+                    int n = channel.read(netIn);
+                    if (n < 0) {
+                        inboundDone = true;
+                    } else if (n == 0) {
+                        starved = true;
+                        return total;
+                    } else {
+                        starved = false;
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Encrypts as much of {@code src} as the socket will take and returns how much was
+     * consumed. The last record may still be waiting in {@link #hasPendingOutput()}.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int consumed = 0;
+        while (src.hasRemaining() && flush()) {
+            SSLEngineResult result = wrap(src);
+            switch (result.getStatus()) {
+                case OK:
+                    consumed += result.bytesConsumed();
+                    break;
+                case BUFFER_OVERFLOW:
+                    netOut = growReadable(netOut, engine.getSession().getPacketBufferSize());
+                    break;
+                default:
+                    throw new SSLException("TLS connection closed");
+            }
+        }
+        flush();
+        return consumed;
+    }
+
+    /** Writes out pending ciphertext; true once there is none left. */
+    public boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) return false;
+        }
+        return true;
+    }
+
+    public boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }
+
+    /** Whether a read might return data without the socket becoming readable again. */
+    public boolean hasBufferedInput() {
+        return appIn.hasRemaining() || (netIn.position() > 0 && !starved);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /** Sends close_notify if the socket will take it, then closes the socket. */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (channel.isOpen() && !engine.isOutboundDone()) {
+                engine.closeOutbound();
+                wrap(EMPTY);
+                flush();
+            }
+        } catch (IOException ignored) {
+        } finally {
+            channel.close();
+        }
+    }
+
+    private int drain(ByteBuffer dst) {
+        int count = Math.min(appIn.remaining(), dst.remaining());
+        if (count == 0) return 0;
+        ByteBuffer slice = appIn.slice();
+        slice.limit(count);
+        dst.put(slice);
+        appIn.position(appIn.position() + count);
+        return count;
+    }
+
+    // Answers what the peer sent after the handshake, such as a TLS 1.3 key update
+    private void respond(SSLEngineResult result) throws IOException {
+        SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+        while (true) {
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                status = engine.getHandshakeStatus();
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                SSLEngineResult wrapped = wrap(EMPTY);
+                if (wrapped.getStatus() != SSLEngineResult.Status.OK) return;
+                status = wrapped.getHandshakeStatus();
+            } else {
+                return;
+            }
+        }
+    }
+
+    private SSLEngineResult wrap(ByteBuffer src) throws SSLException {
+        netOut.compact();
+        try {
+            return engine.wrap(src, netOut);
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    private SSLEngineResult unwrap() throws SSLException {
+        netIn.flip();
+        appIn.compact();
+        try {
+            return engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static ByteBuffer growReadable(ByteBuffer buffer, int size) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        larger.put(buffer);
+        return larger.flip();
+    }
+
+    private static ByteBuffer growWritable(ByteBuffer buffer, int size) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * SSLContexts for the optional TLS transport. The server's comes from a keystore
+ * (chat.tls.keystore, chat.tls.keystorePassword) and keeps a session cache, so a client
+ * reconnecting after a blip resumes its session with an abbreviated handshake instead of
+ * a full key exchange; with chat.tls.sessionTickets the session state travels in an
+ * encrypted ticket held by the client rather than in the cache.
+ *
+ * Clients turn TLS on with -Dchat.tls=true and trust the JVM's default CAs, or the
+ * certificates in chat.tls.truststore. The server's certificate must also name the host
+ * the client connects to, by DNS name or IP address, as it would for HTTPS; otherwise
+ * any certificate a trusted CA issued for some other host would do. For localhost
+ * testing a self-signed keystore does for both ends:
+ * <pre>
+ *   keytool -genkeypair -alias chat -keyalg EC -keystore chat.p12 -storepass changeit \
+ *           -dname CN=localhost -ext SAN=dns:localhost,ip:127.0.0.1 -validity 365
+ * </pre>
+ */
+public final class TlsSupport {
+    private static final String PROTOCOL = "TLS";
+    private static volatile SSLSocketFactory clientFactory;
+
+    private TlsSupport() {}
+
+    public static SSLContext serverContext(ServerConfig config) throws IOException, GeneralSecurityException {
+        // Read once when the TLS classes initialise, so it has to be set before the first context
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(config.isTlsSessionTickets()));
+        }
+        char[] password = config.getTlsKeystorePassword().toCharArray();
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(loadKeyStore(config.getTlsKeystore(), password), password);
+        SSLContext context = SSLContext.getInstance(PROTOCOL);
+        context.init(keys.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(config.getTlsSessionCacheSize());
+        sessions.setSessionTimeout(config.getTlsSessionTimeoutSeconds());
+        return context;
+    }
+
+    /** Whether client connections use TLS (-Dchat.tls=true). */
+    public static boolean isClientEnabled() {
+        return Boolean.getBoolean("chat.tls");
+    }
+
+    /**
+     * The client's socket factory. One context serves every connection the JVM makes, so
+     * its session cache lets a reconnect resume the session of the connection it replaces.
+     */
+    public static SSLSocketFactory clientSocketFactory() throws IOException {
+        SSLSocketFactory factory = clientFactory;
+        if (factory != null) return factory;
+        synchronized (TlsSupport.class) {
+            if (clientFactory == null) {
+                try {
+                    clientFactory = clientContext().getSocketFactory();
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Cannot set up TLS: " + e.getMessage(), e);
+                }
+            }
+            return clientFactory;
+        }
+    }
+
+    /** Makes the handshake on {@code socket} fail unless the certificate names the host connected to. */
+    public static void verifyHostname(SSLSocket socket) {
+        SSLParameters parameters = socket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        socket.setSSLParameters(parameters);
+    }
+
+    private static SSLContext clientContext() throws IOException, GeneralSecurityException {
+        String truststore = System.getProperty("chat.tls.truststore");
+        SSLContext context = SSLContext.getInstance(PROTOCOL);
+        if (truststore == null) {
+            context.init(null, null, null);
+            return context;
+        }
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(loadKeyStore(truststore, System.getProperty("chat.tls.truststorePassword", "").toCharArray()));
+        context.init(null, trust.getTrustManagers(), null);
+        return context;
+    }
+
+    private static KeyStore loadKeyStore(String file, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance(file.endsWith(".jks") ? "JKS" : "PKCS12");
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            store.load(in, password);
+        }
+        return store;
+    }
+
+    /**
+     * Whether a handshake that started at {@code startMillis} resumed an earlier session.
+     * JSSE has no direct way to ask, but a resumed session, from the cache or a ticket,
+     * keeps the creation time of the one it continues.
+     */
+    public static boolean isResumed(SSLSession session, long startMillis) {
+        return session.getCreationTime() < startMillis;
+    }
+}
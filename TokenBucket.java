@@ -0,0 +1,48 @@
+/**
+ * Classic token bucket: {@code ratePerSecond} tokens accrue up to {@code burst}. A
+ * bucket may be driven into debt by {@link #acquire}, in which case the caller is told
+ * how long to wait before the debt is paid off.
+ */
+public class TokenBucket {
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(long ratePerSecond, long burst) {
+        this.capacity = Math.max(1, burst);
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes {@code cost} tokens if they are available. A cost larger than the whole
+     * bucket is let through once the bucket is full, so it can never be starved.
+     */
+    public synchronized boolean tryAcquire(long cost) {
+        refill();
+        if (tokens < cost && tokens < capacity) return false;
+        tokens -= cost;
+        return true;
+    }
+
+    /** Takes {@code cost} tokens unconditionally; returns the nanoseconds until the bucket is out of debt. */
+    public synchronized long acquire(long cost) {
+        refill();
+        tokens -= cost;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+
+    /** Gives back {@code cost} tokens taken for work that did not go ahead, up to a full bucket. */
+    public synchronized void release(long cost) {
+        refill();
+        tokens = Math.min(capacity, tokens + cost);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,254 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Version 2 of the wire format. Every frame is
+ * <pre>
+ *   int payloadLength | byte type | byte flags | [long sequence] | payload (UTF-8, deflated if FLAG_COMPRESSED)
+ * </pre>
+ * The sequence is present, and counted in payloadLength, only if FLAG_SEQUENCED is set.
+ * The server numbers room messages so a reconnecting client can ask for what it missed.
+ * A connection starts in version 1 (writeUTF strings). A client that wants version 2
+ * sends {@link #HELLO} as its first writeUTF string; a server that understands it echoes
+ * it back and both sides switch. Anything else as the first string is a version 1 client.
+ *
+ * A version 2 server sends {@link #PING} as a CONTROL frame to a connection that has been
+ * quiet for a while; the client answers with a {@link #PONG} CONTROL frame.
+ *
+ * FILE frames carry raw bytes of a file transfer (see {@link FileTransfer}) instead of
+ * text: the payload is a long transfer id followed by up to {@link FileTransfer#CHUNK_BYTES}
+ * bytes of the file, never compressed or sequenced.
+ *
+ * Until a client has logged in, the server accepts frames of no more than
+ * {@link #MAX_HANDSHAKE_FRAME_BYTES}, in either version, so a connection that has not
+ * authenticated cannot make it allocate a large buffer.
+ */
+public final class WireProtocol {
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+    public static final String HELLO = "PROTO 2";
+    public static final String PING = "PING";
+    public static final String PONG = "PONG";
+    public static final int HEADER_LENGTH = 6;
+
+    public static final byte CHAT = 1;
+    public static final byte SYSTEM = 2;
+    public static final byte JOIN = 3;
+    public static final byte LEAVE = 4;
+    public static final byte CONTROL = 5;
+    public static final byte FILE = 6;
+
+    public static final byte FLAG_COMPRESSED = 0x01;
+    public static final byte FLAG_SEQUENCED = 0x02;
+    private static final int SEQUENCE_LENGTH = 8;
+    private static final int TRANSFER_ID_LENGTH = 8;
+    /** Header of a FILE frame, transfer id included. */
+    public static final int FILE_HEADER_LENGTH = HEADER_LENGTH + TRANSFER_ID_LENGTH;
+
+    public static final int MAX_FRAME_BYTES = Math.max(1024, ServerConfig.intProperty("chat.protocol.maxFrameBytes", 16 << 20));
+    /** Largest frame, once inflated, accepted before login: enough for any handshake. */
+    public static final int MAX_HANDSHAKE_FRAME_BYTES = 4096;
+    private static final int COMPRESS_ABOVE = ServerConfig.intProperty("chat.protocol.compressAbove", 1024);
+
+    private WireProtocol() {}
+
+    /** A decoded frame. */
+    public static final class Message {
+        private final byte type;
+        private final String text;
+        private final long sequence;
+
+        public Message(byte type, String text) {
+            this(type, text, 0);
+        }
+
+        public Message(byte type, String text, long sequence) {
+            this.type = type;
+            this.text = text;
+            this.sequence = sequence;
+        }
+
+        public byte getType() { return type; }
+        public String getText() { return text; }
+        /** The server's sequence number for a room message, or 0. */
+        public long getSequence() { return sequence; }
+    }
+
+    /** Receives the bytes of FILE frames, which are not decoded into a {@link Message}. */
+    public interface FileSink {
+        /** Must consume exactly {@code count} bytes from {@code in}. */
+        void receive(long transferId, int count, DataInputStream in) throws IOException;
+    }
+
+    /** How a version 1 string from a client maps onto a frame type. */
+    public static byte typeOf(String clientText) {
+        return clientText.startsWith("/") ? CONTROL : CHAT;
+    }
+
+    public static byte[] encode(byte type, String text) throws ProtocolException {
+        return encode(type, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Frames a UTF-8 payload; the array itself is only read. */
+    public static byte[] encode(byte type, byte[] payload) throws ProtocolException {
+        return encode(type, 0, payload);
+    }
+
+    /** As {@link #encode(byte, byte[])}, numbered with {@code sequence} unless it is 0. */
+    public static byte[] encode(byte type, long sequence, byte[] payload) throws ProtocolException {
+        byte flags = 0;
+        if (COMPRESS_ABOVE > 0 && payload.length > COMPRESS_ABOVE) {
+            byte[] compressed = deflate(payload);
+            if (compressed.length < payload.length) {
+                payload = compressed;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+        int length = payload.length;
+        if (sequence != 0) {
+            flags |= FLAG_SEQUENCED;
+            length += SEQUENCE_LENGTH;
+        }
+        if (length > MAX_FRAME_BYTES) {
+            throw new ProtocolException("frame too large: " + length + " bytes");
+        }
+        byte[] frame = new byte[HEADER_LENGTH + length];
+        ByteBuffer buffer = ByteBuffer.wrap(frame).putInt(length).put(type).put(flags);
+        if (sequence != 0) buffer.putLong(sequence);
+        buffer.put(payload);
+        return frame;
+    }
+
+    /** The header of a FILE frame carrying {@code count} bytes; the bytes themselves follow it. */
+    public static byte[] fileHeader(long transferId, int count) {
+        return ByteBuffer.allocate(FILE_HEADER_LENGTH)
+                .putInt(TRANSFER_ID_LENGTH + count).put(FILE).put((byte) 0).putLong(transferId).array();
+    }
+
+    public static Message read(DataInputStream in) throws IOException {
+        return read(in, null);
+    }
+
+    /**
+     * Reads the next frame. A FILE frame is handed to {@code files} straight from the
+     * stream and null is returned; without a sink, one is a protocol error.
+     */
+    public static Message read(DataInputStream in, FileSink files) throws IOException {
+        return read(in, files, MAX_FRAME_BYTES);
+    }
+
+    /** As {@link #read(DataInputStream, FileSink)}, refusing frames over {@code maxBytes}. */
+    public static Message read(DataInputStream in, FileSink files, int maxBytes) throws IOException {
+        int length = in.readInt();
+        byte type = in.readByte();
+        byte flags = in.readByte();
+        checkLength(length, maxBytes);
+        if (type == FILE) {
+            if (files == null) throw new ProtocolException("unexpected file data");
+            checkFileLength(length);
+            files.receive(in.readLong(), length - TRANSFER_ID_LENGTH, in);
+            return null;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decode(type, flags, payload, maxBytes);
+    }
+
+    /**
+     * Reads a version 1 (writeUTF) string of no more than {@code maxBytes}, checking the
+     * length before anything is allocated for it.
+     */
+    public static String readUtf(DataInputStream in, int maxBytes) throws IOException {
+        int length = in.readUnsignedShort();
+        checkLength(length, maxBytes);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return ModifiedUtf8.decode(ByteBuffer.wrap(bytes), length);
+    }
+
+    /** Decodes a frame whose header has been read; the buffer is positioned at the payload. */
+    public static Message decode(ByteBuffer buffer, byte type, byte flags, int length) throws IOException {
+        return decode(buffer, type, flags, length, MAX_FRAME_BYTES);
+    }
+
+    /** As {@link #decode(ByteBuffer, byte, byte, int)}, refusing to inflate past {@code maxBytes}. */
+    public static Message decode(ByteBuffer buffer, byte type, byte flags, int length, int maxBytes) throws IOException {
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        return decode(type, flags, payload, maxBytes);
+    }
+
+    public static void checkLength(int length) throws ProtocolException {
+        checkLength(length, MAX_FRAME_BYTES);
+    }
+
+    public static void checkLength(int length, int maxBytes) throws ProtocolException {
+        if (length < 0 || length > maxBytes) {
+            throw new ProtocolException("invalid frame length: " + length);
+        }
+    }
+
+    public static void checkFileLength(int length) throws ProtocolException {
+        if (length < TRANSFER_ID_LENGTH || length > TRANSFER_ID_LENGTH + FileTransfer.CHUNK_BYTES) {
+            throw new ProtocolException("invalid file frame length: " + length);
+        }
+    }
+
+    private static Message decode(byte type, byte flags, byte[] payload, int maxBytes) throws ProtocolException {
+        long sequence = 0;
+        if ((flags & FLAG_SEQUENCED) != 0) {
+            if (payload.length < SEQUENCE_LENGTH) throw new ProtocolException("truncated sequence number");
+            sequence = ByteBuffer.wrap(payload).getLong();
+            payload = Arrays.copyOfRange(payload, SEQUENCE_LENGTH, payload.length);
+        }
+        if ((flags & FLAG_COMPRESSED) != 0) payload = inflate(payload, maxBytes);
+        return new Message(type, new String(payload, StandardCharsets.UTF_8), sequence);
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Bounded by maxBytes so a small compressed frame cannot expand without limit
+    private static byte[] inflate(byte[] data, int maxBytes) throws ProtocolException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(data.length * 2, maxBytes));
+            byte[] chunk = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(chunk);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ProtocolException("truncated compressed frame");
+                }
+                out.write(chunk, 0, count);
+                if (out.size() > maxBytes) throw new ProtocolException("compressed frame expands too far");
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new ProtocolException("corrupt compressed frame: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts socket writes and the messages they carried, so the average batch size shows
+ * how well outbound messages are being coalesced.
+ */
+public class WriteStats {
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+
+    public void record(int batchSize) {
+        writes.increment();
+        messages.add(batchSize);
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public double averageBatchSize() {
+        long w = writes.sum();
+        return w == 0 ? 0 : (double) messages.sum() / w;
+    }
+}
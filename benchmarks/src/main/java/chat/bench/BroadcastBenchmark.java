@@ -0,0 +1,157 @@
+package chat.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One broadcast, timed until every recipient has read it off a loopback socket. The
+ * recipients are real authenticated connections, drained by a single selector thread.
+ * Needs about twice {@code recipients} file descriptors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    private static final String MESSAGE = "[12:00:00] bench: the quick brown fox jumps over the lazy dog";
+
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    @Param({"nio", "blocking"})
+    public String engine;
+
+    private Object server;
+    private final List<SocketChannel> channels = new ArrayList<>();
+    private final AtomicLong received = new AtomicLong();
+    private Selector selector;
+    private Thread drainer;
+    private volatile boolean running = true;
+    private long frameBytes;
+    private long expected;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        System.setProperty("chat.engine", engine);
+        System.setProperty("chat.executor", "virtual");
+        System.setProperty("chat.rate.fanoutPerSecond", "0");
+        System.setProperty("chat.accept.connectionsPerSecond", "0");
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = Chat.newServer(port);
+        Chat.startInBackground(server);
+
+        selector = Selector.open();
+        for (int i = 0; i < recipients; i++) {
+            SocketChannel channel = connect(port);
+            sendUtf(channel, Chat.resumeHandshake("bench@example.com", "r" + i));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            channels.add(channel);
+        }
+        drainer = new Thread(this::drain, "benchmark-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+        awaitQuiet();
+
+        frameBytes = 2 + MESSAGE.length();
+        expected = received.get();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        expected += frameBytes * recipients;
+        Chat.broadcast(server, MESSAGE);
+        while (received.get() < expected) {
+            Thread.yield();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void closeConnections() throws IOException {
+        running = false;
+        selector.wakeup();
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    private static SocketChannel connect(int port) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            } catch (IOException e) {
+                // The server starts on another thread; give it a moment
+                if (attempt == 50) throw e;
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+            }
+        }
+    }
+
+    private static void sendUtf(SocketChannel channel, String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(text);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    // Join notices and welcome messages from setup; wait until they have all arrived
+    private void awaitQuiet() {
+        long last = -1;
+        while (received.get() != last) {
+            last = received.get();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(500));
+        }
+    }
+
+    private void drain() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        try {
+            while (running) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    int n;
+                    while ((n = channel.read(buffer)) > 0) {
+                        received.addAndGet(n);
+                        buffer.clear();
+                    }
+                    if (n < 0) key.cancel();
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            if (running) e.printStackTrace();
+        }
+    }
+}
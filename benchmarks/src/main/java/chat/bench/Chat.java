@@ -0,0 +1,215 @@
+package chat.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Entry points into the chat server for the benchmarks.
+ *
+ * The server classes live in the default package, which code in a named package cannot
+ * import, and JMH refuses to generate benchmarks in the default package. The benchmarks
+ * therefore call the server through these method handles. Held in static finals they
+ * are constants to the JIT and cost the same as direct calls.
+ *
+ * Loading this class points the server's log, credential and history files at a
+ * scratch directory and silences the server's console output, so a benchmark run
+ * never touches the files of a real installation.
+ */
+final class Chat {
+    static final Path WORK_DIR = prepareWorkDir();
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final Class<?> SERVER_CONFIG = load("ServerConfig");
+    private static final Class<?> CHAT_SERVER = load("ChatServer");
+    private static final Class<?> CLIENT_HANDLER = load("ClientHandler");
+
+    private static final MethodHandle CONFIG_FROM_PROPERTIES =
+            findStatic(SERVER_CONFIG, "fromSystemProperties", MethodType.methodType(SERVER_CONFIG));
+    private static final MethodHandle NEW_SERVER =
+            findConstructor(CHAT_SERVER, MethodType.methodType(void.class, int.class, SERVER_CONFIG));
+    private static final MethodHandle START =
+            findVirtual(CHAT_SERVER, "start", MethodType.methodType(void.class));
+    private static final MethodHandle BROADCAST =
+            findVirtual(CHAT_SERVER, "broadcast", MethodType.methodType(void.class, String.class, CLIENT_HANDLER));
+    private static final MethodHandle NEW_HANDLER =
+            findConstructor(CLIENT_HANDLER, MethodType.methodType(void.class, CHAT_SERVER));
+    private static final VarHandle USERNAME = findField(CLIENT_HANDLER, "username", String.class);
+    private static final MethodHandle FORMAT_CHAT_LINE =
+            findVirtual(CLIENT_HANDLER, "formatChatLine", MethodType.methodType(String.class, String.class, String.class));
+    private static final MethodHandle LOG =
+            findStatic(load("ServerLogger"), "log", MethodType.methodType(void.class, String.class));
+    private static final MethodHandle LOGIN =
+            findStatic(load("LoginSystem"), "login", MethodType.methodType(boolean.class, String.class, String.class));
+    private static final MethodHandle HASH_PASSWORD =
+            findStatic(load("PasswordHasher"), "hash", MethodType.methodType(String.class, String.class));
+    private static final MethodHandle RESUME_HANDSHAKE =
+            findStatic(load("AuthHandshake"), "resume", MethodType.methodType(String.class, String.class, String.class));
+    private static final Class<?> SESSION_TOKENS = load("SessionTokens");
+    private static final MethodHandle TOKENS_FROM_PROPERTIES =
+            findStatic(SESSION_TOKENS, "fromSystemProperties", MethodType.methodType(SESSION_TOKENS));
+    private static final MethodHandle ISSUE_TOKEN =
+            findVirtual(SESSION_TOKENS, "issue", MethodType.methodType(String.class, String.class));
+
+    private Chat() {}
+
+    /** A server built from the current system properties; not started. */
+    static Object newServer(int port) {
+        try {
+            return NEW_SERVER.invoke(port, CONFIG_FROM_PROPERTIES.invoke());
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /** Runs the server's accept loop on a daemon thread. */
+    static void startInBackground(Object server) {
+        Thread thread = new Thread(() -> {
+            try {
+                START.invoke(server);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }, "benchmark-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static void broadcast(Object server, String message) {
+        try {
+            BROADCAST.invoke(server, message, null);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /** A handler that is not attached to any connection, for exercising message handling. */
+    static Object newDetachedHandler(Object server, String username) {
+        try {
+            Object handler = NEW_HANDLER.invoke(server);
+            USERNAME.set(handler, username);
+            return handler;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String formatChatLine(Object handler, String room, String message) {
+        try {
+            return (String) FORMAT_CHAT_LINE.invoke(handler, room, message);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void log(String message) {
+        try {
+            LOG.invokeExact(message);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean login(String email, String password) {
+        try {
+            return (boolean) LOGIN.invokeExact(email, password);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String hashPassword(String password) {
+        try {
+            return (String) HASH_PASSWORD.invokeExact(password);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /** A RESUME handshake the server will accept without a password check. */
+    static String resumeHandshake(String account, String username) {
+        try {
+            String token = (String) ISSUE_TOKEN.invoke(TOKENS_FROM_PROPERTIES.invoke(), account);
+            return (String) RESUME_HANDSHAKE.invokeExact(token, username);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static Path prepareWorkDir() {
+        try {
+            Path dir = Files.createTempDirectory("chat-bench");
+            setDefault("chat.log.dir", dir.toString());
+            setDefault("chat.users.dir", dir.toString());
+            setDefault("chat.history.dir", dir.resolve("history").toString());
+            setDefault("chat.metrics.snapshotSeconds", "0");
+            // Both ends of every connection share one JVM, so the token secret must be fixed
+            setDefault("chat.auth.tokenSecret", "benchmark");
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            return dir;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void setDefault(String name, String value) {
+        if (System.getProperty(name) == null) System.setProperty(name, value);
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name, false, Chat.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("chat-server classes are not on the classpath", e);
+        }
+    }
+
+    private static MethodHandles.Lookup access(Class<?> type) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(type, LOOKUP);
+    }
+
+    private static MethodHandle findStatic(Class<?> type, String name, MethodType signature) {
+        try {
+            return access(type).findStatic(type, name, signature);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle findVirtual(Class<?> type, String name, MethodType signature) {
+        try {
+            return access(type).findVirtual(type, name, signature);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle findConstructor(Class<?> type, MethodType signature) {
+        try {
+            return access(type).findConstructor(type, signature);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static VarHandle findField(Class<?> type, String name, Class<?> fieldType) {
+        try {
+            return access(type).findVarHandle(type, name, fieldType);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) return (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        return new IllegalStateException(t);
+    }
+}
@@ -0,0 +1,31 @@
+package chat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code ServerLogger.log} throughput with several threads logging at once. Override
+ * the thread count with {@code -t}, and the logger's settings with {@code -jvmArgsAppend},
+ * e.g. {@code -jvmArgsAppend -Dchat.log.whenFull=drop}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class LoggerBenchmark {
+
+    @Benchmark
+    public void log() {
+        Chat.log("[12:00:00] bench: the quick brown fox jumps over the lazy dog");
+    }
+}
@@ -0,0 +1,73 @@
+package chat.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code LoginSystem.login} against a users.txt of {@code users} accounts. A successful
+ * login is dominated by PBKDF2, so the hit is measured at {@code iterations} rounds; the
+ * miss measures the credential lookup alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginBenchmark {
+    private static final String ACCOUNT = "bench@example.com";
+    private static final String PASSWORD = "correct horse battery staple";
+
+    @Param({"100000"})
+    public int users;
+
+    @Param({"1000"})
+    public int iterations;
+
+    @Setup
+    public void writeCredentials() throws IOException {
+        System.setProperty("chat.users.pbkdf2Iterations", Integer.toString(iterations));
+        Random random = new Random(42);
+        byte[] salt = new byte[16];
+        byte[] hash = new byte[32];
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        try (BufferedWriter out = Files.newBufferedWriter(Chat.WORK_DIR.resolve("users.txt"))) {
+            for (int i = 0; i < users - 1; i++) {
+                random.nextBytes(salt);
+                random.nextBytes(hash);
+                out.write("user" + i + "@example.com,pbkdf2$" + iterations + "$"
+                        + base64.encodeToString(salt) + "$" + base64.encodeToString(hash));
+                out.newLine();
+            }
+            out.write(ACCOUNT + "," + Chat.hashPassword(PASSWORD));
+            out.newLine();
+        }
+        if (!Chat.login(ACCOUNT, PASSWORD)) throw new IllegalStateException("benchmark account does not log in");
+    }
+
+    @Benchmark
+    public boolean loginKnownUser() {
+        return Chat.login(ACCOUNT, PASSWORD);
+    }
+
+    @Benchmark
+    public boolean loginUnknownUser() {
+        return Chat.login("nobody@example.com", PASSWORD);
+    }
+}
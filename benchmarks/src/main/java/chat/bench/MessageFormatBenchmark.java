@@ -0,0 +1,45 @@
+package chat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The chat line {@code ClientHandler.handleMessage} builds for every message: timestamp, room tag and sender. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageFormatBenchmark {
+
+    @Param({"lobby", "dev"})
+    public String room;
+
+    @Param({"16", "256"})
+    public int messageLength;
+
+    private Object handler;
+    private String message;
+
+    @Setup
+    public void createHandler() {
+        handler = Chat.newDetachedHandler(Chat.newServer(0), "bench");
+        message = "x".repeat(messageLength);
+    }
+
+    @Benchmark
+    public String formatChatLine() {
+        return Chat.formatChatLine(handler, room, message);
+    }
+}
@@ -0,0 +1,124 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+class ModifiedUtf8Test {
+    private static final String[] SAMPLES = {
+            "",
+            "hello, world",
+            "nul \u0000 inside",
+            "caf\u00e9 \u00fc\u00df \u07ff",
+            "\u0800 \u20ac \uffff",
+            "emoji \ud83d\ude00 pair",
+            "lone \ud800 high and \udc00 low",
+    };
+
+    private static byte[] writeUtf(String s) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(s);
+        return bytes.toByteArray();
+    }
+
+    private static String decodeFrame(byte[] frame) throws UTFDataFormatException {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        int length = buffer.getShort() & 0xFFFF;
+        String s = ModifiedUtf8.decode(buffer, length);
+        assertEquals(frame.length, buffer.position());
+        return s;
+    }
+
+    @Test
+    void encodesExactlyAsWriteUtf() throws IOException {
+        for (String s : SAMPLES) {
+            assertArrayEquals(writeUtf(s), ModifiedUtf8.encodeFrame(s), s);
+            assertEquals(writeUtf(s).length - ModifiedUtf8.HEADER_LENGTH, ModifiedUtf8.encodedLength(s));
+        }
+    }
+
+    @Test
+    void decodesWhatWriteUtfProduces() throws IOException {
+        for (String s : SAMPLES) {
+            assertEquals(s, decodeFrame(writeUtf(s)));
+        }
+    }
+
+    @Test
+    void readUtfDecodesWhatEncodeFrameProduces() throws IOException {
+        for (String s : SAMPLES) {
+            assertEquals(s, new DataInputStream(new ByteArrayInputStream(ModifiedUtf8.encodeFrame(s))).readUTF());
+        }
+    }
+
+    @Test
+    void nulTakesTwoBytes() throws IOException {
+        byte[] frame = ModifiedUtf8.encodeFrame("\u0000");
+        assertArrayEquals(new byte[] {0, 2, (byte) 0xC0, (byte) 0x80}, frame);
+        assertEquals("\u0000", decodeFrame(frame));
+    }
+
+    @Test
+    void everyCharRoundTrips() throws IOException {
+        StringBuilder chars = new StringBuilder();
+        for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++) {
+            chars.append((char) c);
+            if (chars.length() == 8192 || c == Character.MAX_VALUE) {
+                String s = chars.toString();
+                assertEquals(s, decodeFrame(ModifiedUtf8.encodeFrame(s)));
+                chars.setLength(0);
+            }
+        }
+    }
+
+    @Test
+    void decodingStopsAtTheGivenLength() throws IOException {
+        byte[] first = ModifiedUtf8.encodeFrame("caf\u00e9");
+        byte[] second = ModifiedUtf8.encodeFrame("\u20ac");
+        ByteBuffer buffer = ByteBuffer.allocate(first.length + second.length).put(first).put(second).flip();
+        buffer.position(ModifiedUtf8.HEADER_LENGTH);
+        assertEquals("caf\u00e9", ModifiedUtf8.decode(buffer, first.length - ModifiedUtf8.HEADER_LENGTH));
+        assertEquals(first.length, buffer.position());
+    }
+
+    @Test
+    void longestStringFitsAndOneMoreByteIsRefused() throws IOException {
+        String longest = "\u20ac".repeat(ModifiedUtf8.MAX_LENGTH / 3);
+        assertEquals(longest, decodeFrame(ModifiedUtf8.encodeFrame(longest)));
+        assertThrows(UTFDataFormatException.class, () -> ModifiedUtf8.encodeFrame(longest + "a"));
+    }
+
+    @Test
+    void malformedInputIsRefused() {
+        byte[][] malformed = {
+                {(byte) 0xC3},                          // two byte form cut short
+                {(byte) 0xE2, (byte) 0x82},             // three byte form cut short
+                {(byte) 0xC3, 0x41},                    // continuation byte missing
+                {(byte) 0xE2, 0x41, (byte) 0xAC},
+                {(byte) 0x80},                          // stray continuation byte
+                {(byte) 0xF0, (byte) 0x9F, (byte) 0x98, (byte) 0x80}, // four byte UTF-8
+        };
+        for (byte[] bytes : malformed) {
+            assertThrows(UTFDataFormatException.class, () -> ModifiedUtf8.decode(ByteBuffer.wrap(bytes), bytes.length));
+        }
+    }
+
+    @Test
+    void handshakeReadRefusesLongStrings() throws IOException {
+        String name = "a".repeat(WireProtocol.MAX_HANDSHAKE_FRAME_BYTES + 1);
+        DataInputStream tooLong = new DataInputStream(new ByteArrayInputStream(ModifiedUtf8.encodeFrame(name)));
+        assertThrows(IOException.class, () -> WireProtocol.readUtf(tooLong, WireProtocol.MAX_HANDSHAKE_FRAME_BYTES));
+
+        String fits = "\u00e9".repeat(WireProtocol.MAX_HANDSHAKE_FRAME_BYTES / 2);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(ModifiedUtf8.encodeFrame(fits)));
+        assertEquals(fits, WireProtocol.readUtf(in, WireProtocol.MAX_HANDSHAKE_FRAME_BYTES));
+    }
+}
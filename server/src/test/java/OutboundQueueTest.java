@@ -0,0 +1,84 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class OutboundQueueTest {
+    // Lower case stands for chat, which may be dropped; upper case for control frames
+    private static OutboundQueue<String> queue(int capacity, OutboundQueue.OverflowPolicy policy) {
+        return new OutboundQueue<>(capacity, policy, item -> Character.isLowerCase(item.charAt(0)));
+    }
+
+    private static List<String> drain(OutboundQueue<String> queue) {
+        List<String> items = new ArrayList<>();
+        String item;
+        while ((item = queue.poll()) != null) {
+            items.add(item);
+        }
+        return items;
+    }
+
+    @Test
+    void dropOldestShedsTheOldestChat() {
+        OutboundQueue<String> queue = queue(3, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer("a");
+        queue.offer("b");
+        queue.offer("c");
+        assertEquals(OutboundQueue.Result.ACCEPTED, queue.offer("d"));
+        assertEquals(List.of("b", "c", "d"), drain(queue));
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    void dropOldestKeepsControlFramesAndTheirOrder() {
+        OutboundQueue<String> queue = queue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer("JOIN");
+        queue.offer("a");
+        queue.offer("LEAVE");
+        queue.offer("b");
+        assertEquals(OutboundQueue.Result.ACCEPTED, queue.offer("c"));
+        assertEquals(OutboundQueue.Result.ACCEPTED, queue.offer("END"));
+        assertEquals(List.of("JOIN", "LEAVE", "c", "END"), drain(queue));
+        assertEquals(2, queue.getDroppedCount());
+    }
+
+    @Test
+    void dropNewestStillMakesRoomForControlFrames() {
+        OutboundQueue<String> queue = queue(2, OutboundQueue.OverflowPolicy.DROP_NEWEST);
+        queue.offer("a");
+        queue.offer("b");
+        assertEquals(OutboundQueue.Result.DROPPED, queue.offer("c"));
+        assertEquals(OutboundQueue.Result.ACCEPTED, queue.offer("SYSTEM"));
+        assertEquals(List.of("b", "SYSTEM"), drain(queue));
+    }
+
+    @Test
+    void aQueueFullOfControlFramesOverflows() {
+        OutboundQueue<String> queue = queue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer("JOIN");
+        queue.offer("LEAVE");
+        assertEquals(OutboundQueue.Result.DROPPED, queue.offer("a"));
+        assertEquals(OutboundQueue.Result.OVERFLOW, queue.offer("RESUMED"));
+        assertEquals(List.of("JOIN", "LEAVE"), drain(queue));
+    }
+
+    @Test
+    void removalWorksAcrossTheEndOfTheRing() {
+        OutboundQueue<String> queue = queue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer("A");
+        queue.offer("B");
+        queue.poll();
+        // The ring has wrapped, and the only chat is in the first slot, behind the rest
+        for (String item : new String[] {"C", "D", "x"}) {
+            queue.offer(item);
+        }
+        assertEquals(OutboundQueue.Result.ACCEPTED, queue.offer("E"));
+        assertEquals(List.of("B", "C", "D", "E"), drain(queue));
+        assertNull(queue.poll());
+        queue.offer("F");
+        assertEquals(List.of("F"), drain(queue));
+    }
+}
@@ -0,0 +1,179 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SearchIndexTest {
+    static {
+        // Small segments, so a few thousand messages seal and merge several of them
+        System.setProperty("chat.search.segmentMessages", "256");
+    }
+
+    private static final Set<String> LOBBY = Set.of(RoomDirectory.DEFAULT_ROOM);
+
+    @TempDir
+    Path dir;
+    private MessageStore store;
+
+    @AfterEach
+    void close() {
+        if (store != null) store.close();
+    }
+
+    private SearchIndex index(int segmentBytes, long retentionBytes) throws IOException {
+        store = new MessageStore(dir, segmentBytes, retentionBytes, TimeUnit.DAYS.toMillis(3650));
+        SearchIndex index = new SearchIndex(store);
+        index.start();
+        return index;
+    }
+
+    private SearchIndex index() throws IOException {
+        return index(1 << 20, 64L << 20);
+    }
+
+    private long post(String room, String user, String text) throws IOException {
+        return post(room, user, text, System.currentTimeMillis());
+    }
+
+    // Stored as ClientHandler formats chat lines
+    private long post(String room, String user, String text, long timestamp) throws IOException {
+        String tag = RoomDirectory.DEFAULT_ROOM.equals(room) ? "" : "#" + room + " ";
+        return store.append(room, "[12:00:00] " + tag + user + ": " + text, timestamp);
+    }
+
+    private static void awaitIndexed(SearchIndex index, long id) throws InterruptedException {
+        index.messageAppended();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (index.getIndexedUpTo() < id) {
+            assertTrue(System.nanoTime() < deadline, "indexer did not catch up");
+            Thread.sleep(5);
+        }
+    }
+
+    private static List<Long> ids(List<MessageStore.StoredMessage> messages) {
+        List<Long> ids = new ArrayList<>();
+        for (MessageStore.StoredMessage message : messages) {
+            ids.add(message.getId());
+        }
+        return ids;
+    }
+
+    private static List<Long> search(SearchIndex index, String query, Set<String> rooms) {
+        return ids(index.search(SearchIndex.Query.parse(query), rooms, 100));
+    }
+
+    @Test
+    void everyWordMustMatch() throws Exception {
+        SearchIndex index = index();
+        long redApple = post("lobby", "alice", "A red apple");
+        post("lobby", "bob", "a red car");
+        long greenApple = post("lobby", "alice", "green APPLE, crisp");
+        awaitIndexed(index, greenApple);
+
+        assertEquals(List.of(redApple), search(index, "red apple", LOBBY));
+        assertEquals(List.of(greenApple, redApple), search(index, "Apple", LOBBY));
+        assertEquals(List.of(), search(index, "red banana", LOBBY));
+    }
+
+    @Test
+    void fromNarrowsToOneSender() throws Exception {
+        SearchIndex index = index();
+        long first = post("lobby", "alice", "apple");
+        post("lobby", "bob", "apple");
+        long last = post("lobby", "Alice", "apple pie");
+        awaitIndexed(index, last);
+
+        assertEquals(List.of(last, first), search(index, "apple from:alice", LOBBY));
+        assertEquals(List.of(last), search(index, "pie from:ALICE", LOBBY));
+        assertEquals(List.of(), search(index, "apple from:carol", LOBBY));
+    }
+
+    @Test
+    void onlyTheCallersRoomsAreSearched() throws Exception {
+        SearchIndex index = index();
+        long lobby = post("lobby", "alice", "plans");
+        long dev = post("dev", "bob", "plans");
+        long secret = post("secret", "carol", "plans");
+        awaitIndexed(index, secret);
+
+        assertEquals(List.of(lobby), search(index, "plans", LOBBY));
+        assertEquals(List.of(dev, lobby), search(index, "plans", Set.of("lobby", "dev")));
+        assertEquals(List.of(secret, dev, lobby), search(index, "plans", Set.of("lobby", "dev", "secret")));
+        assertEquals(List.of(), search(index, "plans", Set.of()));
+        // Naming a room the caller is not in does not get round it
+        assertEquals(List.of(), search(index, "plans in:secret", Set.of("lobby", "dev")));
+        assertEquals(List.of(dev), search(index, "plans in:DEV", Set.of("lobby", "dev")));
+    }
+
+    @Test
+    void afterAndBeforeBoundTheTimestamps() throws Exception {
+        SearchIndex index = index();
+        long old = post("lobby", "alice", "report", LocalDate.of(2020, 1, 1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        long recent = post("lobby", "alice", "report");
+        awaitIndexed(index, recent);
+
+        assertEquals(List.of(old), search(index, "report before:2021-01-01", LOBBY));
+        assertEquals(List.of(recent), search(index, "report after:2021-01-01", LOBBY));
+        assertEquals(List.of(recent), search(index, "report after:1h", LOBBY));
+        assertEquals(List.of(recent, old), search(index, "report", LOBBY));
+    }
+
+    @Test
+    void resultsAcrossSealedAndMergedSegmentsComeNewestFirst() throws Exception {
+        SearchIndex index = index();
+        List<Long> everyThird = new ArrayList<>();
+        long last = 0;
+        // Enough for sealed segments to be merged, with the rest still in memory
+        for (int i = 0; i < 3000; i++) {
+            String text = "message " + i + (i % 3 == 0 ? " fizz" : "") + (i % 1000 == 999 ? " rare" : "");
+            last = post(i % 2 == 0 ? "lobby" : "dev", "user" + (i % 5), text);
+            if (i % 3 == 0) everyThird.add(0, last);
+        }
+        awaitIndexed(index, last);
+
+        List<Long> fizz = ids(index.search(SearchIndex.Query.parse("fizz"), Set.of("lobby", "dev"), 2000));
+        assertEquals(everyThird, fizz);
+        assertEquals(everyThird.subList(0, 10), ids(index.search(SearchIndex.Query.parse("fizz"), Set.of("lobby", "dev"), 10)));
+        assertEquals(List.of(last, last - 1000, last - 2000), search(index, "rare", Set.of("dev")));
+        assertEquals(List.of(), search(index, "rare", LOBBY));
+        assertEquals(List.of(last - 2999 + 1234), search(index, "1234", Set.of("lobby")));
+    }
+
+    @Test
+    void retiredMessagesDropOutOfResults() throws Exception {
+        // Retention keeps about two 16KB segments of the store
+        SearchIndex index = index(16 * 1024, 32 * 1024);
+        long first = post("lobby", "alice", "ancient words");
+        long last = first;
+        for (int i = 0; i < 5000; i++) {
+            last = post("lobby", "bob", "filler " + i);
+        }
+        long recent = post("lobby", "alice", "ancient words again");
+        awaitIndexed(index, recent);
+
+        assertTrue(store.firstId() > first);
+        assertEquals(List.of(recent), search(index, "ancient", LOBBY));
+        assertEquals(List.of(last), search(index, "4999", LOBBY));
+        assertEquals(List.of(), search(index, "filler 0", LOBBY));
+    }
+
+    @Test
+    void queriesWithNothingToMatchAreRefused() {
+        assertThrows(IllegalArgumentException.class, () -> SearchIndex.Query.parse("   "));
+        assertThrows(IllegalArgumentException.class, () -> SearchIndex.Query.parse("after:2h"));
+        assertThrows(IllegalArgumentException.class, () -> SearchIndex.Query.parse("word in:no/such/room"));
+        assertThrows(IllegalArgumentException.class, () -> SearchIndex.Query.parse("word before:someday"));
+    }
+}
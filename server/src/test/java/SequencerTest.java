@@ -0,0 +1,135 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+
+class SequencerTest {
+    private static final Set<String> DEV = Set.of("dev");
+
+    private static Sequencer sequencer(int capacity, int consumers) {
+        return new Sequencer(new ChatServer(0), capacity, consumers);
+    }
+
+    private static void awaitDelivered(Sequencer sequencer) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sequencer.getBacklog() > 0) {
+            assertTrue(System.nanoTime() < deadline, "consumers did not catch up");
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    void sequenceNumbersAreConsecutive() {
+        Sequencer sequencer = sequencer(8, 1);
+        long first = sequencer.publish("dev", WireProtocol.CHAT, "a", null).getSequence();
+        assertEquals(first + 1, sequencer.publish("dev", WireProtocol.CHAT, "b", null).getSequence());
+        assertEquals(first + 2, sequencer.publish(null, WireProtocol.SYSTEM, "c", null).getSequence());
+        assertEquals(3, sequencer.getPublished());
+    }
+
+    @Test
+    void replayReturnsMessagesStillInTheRing() {
+        Sequencer sequencer = sequencer(8, 1);
+        long first = sequencer.publish("dev", WireProtocol.CHAT, "m0", null).getSequence();
+        sequencer.publish("other", WireProtocol.CHAT, "elsewhere", null);
+        sequencer.publish(null, WireProtocol.SYSTEM, "everyone", null);
+        sequencer.publish("dev", WireProtocol.CHAT, "m1", null);
+
+        List<Frame> missed = sequencer.since(first - 1, DEV, null);
+        assertEquals(2, missed.size());
+        assertEquals("m0", missed.get(0).getText());
+        assertEquals("m1", missed.get(1).getText());
+        assertTrue(sequencer.since(first + 3, DEV, null).isEmpty());
+    }
+
+    @Test
+    void replayAfterTheRingWrapsReportsAGap() throws InterruptedException {
+        Sequencer sequencer = sequencer(4, 1);
+        sequencer.start();
+        long first = 0;
+        for (int i = 0; i < 10; i++) {
+            long sequence = sequencer.publish("dev", WireProtocol.CHAT, "m" + i, null).getSequence();
+            if (i == 0) first = sequence;
+        }
+        awaitDelivered(sequencer);
+
+        // Only the last lap, m6 to m9, is still held
+        List<Frame> missed = sequencer.since(first + 5, DEV, null);
+        assertEquals(4, missed.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(first + 6 + i, missed.get(i).getSequence());
+            assertEquals("m" + (6 + i), missed.get(i).getText());
+        }
+        assertNull(sequencer.since(first + 4, DEV, null));
+        assertNull(sequencer.since(first - 1, DEV, null));
+    }
+
+    @Test
+    void replayFromBeforeStartupReportsAGap() {
+        Sequencer sequencer = sequencer(8, 1);
+        long first = sequencer.publish("dev", WireProtocol.CHAT, "m0", null).getSequence();
+        assertNull(sequencer.since(first - 2, DEV, null));
+    }
+
+    @Test
+    void publisherWaitsForTheSlowestConsumerOnceTheRingIsFull() throws Exception {
+        Sequencer sequencer = sequencer(4, 2);
+        for (int i = 0; i < 4; i++) {
+            sequencer.publish("dev", WireProtocol.CHAT, "m" + i, null);
+        }
+        // Nothing has been delivered, so the next message would overwrite the first
+        CompletableFuture<Frame> blocked = CompletableFuture.supplyAsync(
+                () -> sequencer.publish("dev", WireProtocol.CHAT, "m4", null));
+        try {
+            blocked.get(200, TimeUnit.MILLISECONDS);
+            throw new AssertionError("publish overwrote an undelivered slot");
+        } catch (TimeoutException expected) {
+            // still waiting for the consumers
+        }
+        assertFalse(blocked.isDone());
+        // The waiting publisher has already claimed its number
+        assertEquals(5, sequencer.getBacklog());
+
+        sequencer.start();
+        assertEquals("m4", blocked.get(5, TimeUnit.SECONDS).getText());
+        assertEquals(1, sequencer.getPublisherWaits());
+        awaitDelivered(sequencer);
+        assertEquals(5, sequencer.getPublished());
+    }
+
+    @Test
+    void publishersRacingAroundASmallRingLoseNothing() throws Exception {
+        Sequencer sequencer = sequencer(8, 2);
+        sequencer.start();
+        int publishers = 4;
+        int each = 2000;
+        CompletableFuture<?>[] running = new CompletableFuture<?>[publishers];
+        for (int p = 0; p < publishers; p++) {
+            running[p] = CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < each; i++) {
+                    sequencer.publish("dev", WireProtocol.CHAT, "m", null);
+                }
+            });
+        }
+        CompletableFuture.allOf(running).get(30, TimeUnit.SECONDS);
+        long last = sequencer.publish("dev", WireProtocol.CHAT, "last", null).getSequence();
+        awaitDelivered(sequencer);
+        assertEquals(publishers * each + 1, sequencer.getPublished());
+        assertEquals(0, sequencer.getBacklog());
+
+        // Every slot of the final lap holds its own number
+        List<Frame> lap = sequencer.since(last - 8, DEV, null);
+        assertEquals(8, lap.size());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(last - 7 + i, lap.get(i).getSequence());
+        }
+    }
+}
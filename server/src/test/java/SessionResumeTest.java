@@ -0,0 +1,96 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/** Drives blocking-engine handlers over loopback sockets, without the rest of the server. */
+@Timeout(20)
+class SessionResumeTest {
+    private ChatServer server;
+    private ServerSocket listener;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = new ChatServer(0);
+        server.getSequencer().start();
+        listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        daemon(() -> {
+            try {
+                while (true) {
+                    Socket socket = listener.accept();
+                    ClientHandler handler = new ClientHandler(socket, server);
+                    server.clientConnected(handler, null);
+                    daemon(handler);
+                    daemon(handler::writeLoop);
+                }
+            } catch (IOException closed) {
+                // the test is over
+            }
+        });
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        listener.close();
+    }
+
+    private static void daemon(Runnable task) {
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private ChatConnection connect(String account, String name) throws IOException {
+        ChatConnection connection = new ChatConnection("127.0.0.1", listener.getLocalPort());
+        assertTrue(connection.resume(server.getSessionTokens().issue(account), name));
+        readUntil(connection, "Welcome");
+        return connection;
+    }
+
+    private static String readUntil(ChatConnection connection, String text) throws IOException {
+        while (true) {
+            String message = connection.readMessage();
+            if (message.contains(text)) return message;
+        }
+    }
+
+    @Test
+    void resumeTakesOverAConnectionTheServerStillHolds() throws IOException {
+        ChatConnection old = connect("alice@example.com", "alice");
+        old.send("/join dev");
+        readUntil(old, "Now talking in #dev");
+        ChatConnection bob = connect("bob@example.com", "bob");
+        bob.send("/join dev");
+        readUntil(bob, "Now talking in #dev");
+
+        bob.send("m1");
+        readUntil(old, "bob: m1");
+        long seen = old.getLastSequence();
+        // Published before the new connection arrives; the old socket stays open, so the
+        // server still has alice registered when the resume comes in
+        bob.send("m2 while away");
+        readUntil(old, "bob: m2 while away");
+
+        ChatConnection fresh = new ChatConnection("127.0.0.1", listener.getLocalPort());
+        fresh.send(WireProtocol.CONTROL, AuthHandshake.resume(server.getSessionTokens().issue("alice@example.com"), "alice", seen));
+        assertEquals(AuthHandshake.OK, AuthHandshake.parse(fresh.readMessage())[0]);
+        readUntil(fresh, "Welcome, alice!");
+        assertTrue(fresh.readMessage().endsWith("#dev bob: m2 while away"));
+        assertEquals("[Server] Resumed with 1 missed messages, talking in #dev.", fresh.readMessage());
+
+        // Back in the room live, not just replayed
+        bob.send("m3");
+        assertTrue(readUntil(fresh, "bob:").endsWith("#dev bob: m3"));
+        fresh.close();
+        bob.close();
+        old.close();
+    }
+}